@@ -0,0 +1,81 @@
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * WordKernels with the Vector API, as many words per step as the widest vector the CPU has. The words that do not
+ * fill a whole vector at the end are left to the scalar loops.
+ *
+ * Loaded by WordKernels through reflection, so this is the only class that needs jdk.incubator.vector.
+ */
+public class VectorWordKernels extends WordKernels {
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    public VectorWordKernels() {
+    }
+
+    @Override
+    String name() {
+        return "vector, " + SPECIES.vectorBitSize() + " bits";
+    }
+
+    @Override
+    void shiftCopy(long[] target, int to, long[] source, int from, int shift, int count) {
+        int bound = SPECIES.loopBound(count);
+        for (int i = 0; i < bound; i += LANES) {
+            // The high part is the same words one further on, so load them again from one word later.
+            LongVector low = LongVector.fromArray(SPECIES, source, from + i);
+            LongVector high = LongVector.fromArray(SPECIES, source, from + i + 1);
+            low.lanewise(VectorOperators.LSHR, shift)
+                    .or(high.lanewise(VectorOperators.LSHL, 64 - shift))
+                    .intoArray(target, to + i);
+        }
+        super.shiftCopy(target, to + bound, source, from + bound, shift, count - bound);
+    }
+
+    @Override
+    int firstNotFull(long[] words, int from, int to) {
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = from; i < bound; i += LANES) {
+            VectorMask<Long> notFull = LongVector.fromArray(SPECIES, words, i).compare(VectorOperators.NE, -1L);
+            if (notFull.anyTrue()) {
+                return i + notFull.firstTrue();
+            }
+        }
+        return super.firstNotFull(words, bound, to);
+    }
+
+    @Override
+    long countClear(long[] words, int from, int to) {
+        // There is no lane popcount in this version of the API, so count the bits of every lane with shifts and adds.
+        int bound = from + SPECIES.loopBound(to - from);
+        LongVector sum = LongVector.zero(SPECIES);
+        for (int i = from; i < bound; i += LANES) {
+            LongVector x = LongVector.fromArray(SPECIES, words, i).not();
+            x = x.sub(x.lanewise(VectorOperators.LSHR, 1).and(0x5555555555555555L));
+            x = x.and(0x3333333333333333L).add(x.lanewise(VectorOperators.LSHR, 2).and(0x3333333333333333L));
+            x = x.add(x.lanewise(VectorOperators.LSHR, 4)).and(0x0F0F0F0F0F0F0F0FL);
+            x = x.add(x.lanewise(VectorOperators.LSHR, 8));
+            x = x.add(x.lanewise(VectorOperators.LSHR, 16));
+            x = x.add(x.lanewise(VectorOperators.LSHR, 32));
+            sum = sum.add(x.and(0x7FL));
+        }
+        return sum.reduceLanes(VectorOperators.ADD) + super.countClear(words, bound, to);
+    }
+
+    @Override
+    int mismatch(long[] a, int aFrom, long[] b, int bFrom, int count) {
+        int bound = SPECIES.loopBound(count);
+        for (int i = 0; i < bound; i += LANES) {
+            VectorMask<Long> differ = LongVector.fromArray(SPECIES, a, aFrom + i)
+                    .compare(VectorOperators.NE, LongVector.fromArray(SPECIES, b, bFrom + i));
+            if (differ.anyTrue()) {
+                return i + differ.firstTrue();
+            }
+        }
+        int rest = super.mismatch(a, aFrom + bound, b, bFrom + bound, count - bound);
+        return rest < 0 ? -1 : bound + rest;
+    }
+}
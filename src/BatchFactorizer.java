@@ -0,0 +1,173 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factorizes an arbitrary batch of 64-bit numbers with one shared prime table.
+ *
+ * Every number is trial divided by the primes in the table up to its cube root (or the end of the table), and
+ * whatever is left is finished by PollardRho, which handles any cofactor below 2^63 on its own. So the table only
+ * decides how much is done by trial division; a small one is enough for any input.
+ *
+ * The batch is split into chunks that the threads take from a shared counter, like the sieve segments, so a thread
+ * that gets hard numbers simply takes fewer chunks. The factors are kept in one primitive array per chunk, and
+ * written to a FactorPrintOut from one thread at the end.
+ */
+public class BatchFactorizer {
+    private static final int CHUNK = 4096; // Numbers per chunk handed out to a thread.
+
+    private final PrimeTable table;
+    private final int threads;
+
+    /**
+     * Constructor.
+     * @param table The odd primes to trial divide with.
+     * @param threads The number of threads to use.
+     */
+    BatchFactorizer(PrimeTable table, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Need at least one thread.");
+        }
+        this.table = table;
+        this.threads = threads;
+    }
+
+    /**
+     * Read numbers separated by whitespace, sorted and without duplicates, since FactorPrintOut merges equal bases.
+     * @param in Where to read from.
+     * @return The numbers.
+     * @throws IOException If the input can not be read.
+     * @throws IllegalArgumentException If a number is not between 2 and 2^63 - 1.
+     */
+    static long[] read(InputStream in) throws IOException, IllegalArgumentException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+        long[] numbers = new long[1024];
+        int count = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            for (String token : line.trim().split("\\s+")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+                long number = Long.parseLong(token);
+                if (number < 2) {
+                    throw new IllegalArgumentException("Can only factorize numbers from 2 to 2^63 - 1, got " + token + ".");
+                }
+                if (count == numbers.length) {
+                    numbers = Arrays.copyOf(numbers, count * 2);
+                }
+                numbers[count++] = number;
+            }
+        }
+
+        Arrays.sort(numbers, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || numbers[i] != numbers[unique - 1]) {
+                numbers[unique++] = numbers[i];
+            }
+        }
+        return Arrays.copyOf(numbers, unique);
+    }
+
+    /**
+     * Factorize all the numbers, and add the factors to the print out.
+     * @param numbers The numbers, each between 2 and 2^63 - 1.
+     * @param out Where to add the factors.
+     */
+    void factor(long[] numbers, FactorPrintOut out) {
+        int chunks = (numbers.length + CHUNK - 1) / CHUNK;
+        long[][] factors = new long[chunks][]; // Per chunk, the factors of each number in order.
+        int[][] counts = new int[chunks][]; // Per chunk, the number of factors of each number.
+        AtomicInteger next = new AtomicInteger();
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(() -> {
+                ArrayList<UInt128> found = new ArrayList<>(64);
+                for (int chunk = next.getAndIncrement(); chunk < chunks; chunk = next.getAndIncrement()) {
+                    int from = chunk * CHUNK;
+                    int to = Math.min(from + CHUNK, numbers.length);
+                    long[] chunkFactors = new long[(to - from) * 4];
+                    int[] chunkCounts = new int[to - from];
+                    int used = 0;
+
+                    for (int j = from; j < to; j++) {
+                        found.clear();
+                        factor(numbers[j], found);
+                        if (used + found.size() > chunkFactors.length) {
+                            chunkFactors = Arrays.copyOf(chunkFactors, Math.max(chunkFactors.length * 2, used + found.size()));
+                        }
+                        for (UInt128 factor : found) {
+                            chunkFactors[used++] = factor.longValue();
+                        }
+                        chunkCounts[j - from] = found.size();
+                    }
+
+                    factors[chunk] = chunkFactors;
+                    counts[chunk] = chunkCounts;
+                }
+            });
+            workers[i].start();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            int used = 0;
+            for (int j = 0; j < counts[chunk].length; j++) {
+                long number = numbers[chunk * CHUNK + j];
+                for (int f = 0; f < counts[chunk][j]; f++) {
+                    out.addFactor(number, factors[chunk][used++]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Factorize one number.
+     * @param x The number, between 2 and 2^63 - 1.
+     * @param factors The list to add the factors to.
+     */
+    void factor(long x, ArrayList<UInt128> factors) {
+        long remain = x;
+
+        // 2 is an edge case, since the table only has odd primes.
+        int twos = Long.numberOfTrailingZeros(remain);
+        for (int i = 0; i < twos; i++) {
+            factors.add(UInt128.of(2));
+        }
+        remain >>>= twos;
+
+        // Trial divide up to the cube root, what is left then has at most two prime factors.
+        long limit = (long)Math.cbrt(remain) + 1;
+        long prime = 1;
+        for (int t = 0; t < table.size() && remain != 1; t++) {
+            prime += table.gap(t);
+            if (prime > limit) {
+                break;
+            }
+            if (remain % prime == 0) {
+                do {
+                    factors.add(UInt128.of(prime));
+                    remain /= prime;
+                } while (remain % prime == 0);
+                limit = (long)Math.cbrt(remain) + 1;
+            }
+        }
+
+        PollardRho.factor(remain, factors);
+    }
+}
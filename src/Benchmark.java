@@ -0,0 +1,406 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Benchmark harness timing the phases of Primes separately, for performance work where the 7-run median printed by
+ * Primes.main is too coarse.
+ *
+ * Every benchmark prepares its input outside the timed region, runs some warm-up iterations so the hot loops are
+ * compiled, and then times every measured iteration on its own. Each iteration also records the garbage collections
+ * that happened during it and the bytes allocated by the benchmarking thread. Allocation on the worker threads and
+ * the fork/join pool is not included, so for the parallel benchmarks it is a lower bound.
+ *
+ * The results are written as CSV or JSON, one row per benchmark, n and thread count, so two runs can be diffed.
+ */
+public class Benchmark {
+    private static final String[] ALL = {"flip", "next", "seq-sieve", "par-sieve", "table", "index", "factor"};
+    private static final List<String> SINGLE_THREADED = Arrays.asList("flip", "next", "seq-sieve");
+
+    private static long sink; // Results go here, so the JIT can not remove the work.
+
+    /**
+     * One benchmark for one n and thread count.
+     */
+    private abstract static class Case {
+        /**
+         * Prepare the input, not timed.
+         */
+        void setup() {
+        }
+
+        /**
+         * The timed work.
+         */
+        abstract void run();
+
+        /**
+         * Release resources, not timed.
+         */
+        void teardown() {
+        }
+    }
+
+    /**
+     * Main.
+     * @param args Options, all optional:
+     *             --n=N,N,... - The numbers to find primes below, default 10000000.
+     *             --k=K,K,... - The numbers of threads, default the number of cores.
+     *             --bench=NAME,NAME,... - Which benchmarks to run, default all.
+     *             --warmup=COUNT - Warm-up iterations per benchmark, default 3.
+     *             --iterations=COUNT - Measured iterations per benchmark, default 10.
+     *             --block-size=BYTES, --wheel=2|30|210, --factor=trial|interval, --rho - As for Primes.
+     *             --format=csv|json - Output format, default csv.
+     *             --out=FILE - Write the results to a file instead of standard out.
+     */
+    public static void main(String[] args) throws FileNotFoundException {
+        long[] ns = {10000000};
+        int[] ks = {Runtime.getRuntime().availableProcessors()};
+        String[] benches = ALL;
+        int warmup = 3;
+        int iterations = 10;
+        int blockSize = 32 * 1024;
+        Wheel wheel = Wheel.ODD;
+        boolean interval = false;
+        boolean rho = false;
+        boolean json = false;
+        String out = null;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--n=")) {
+                ns = Arrays.stream(value.split(",")).mapToLong(Long::parseLong).toArray();
+            } else if (arg.startsWith("--k=")) {
+                ks = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--bench=")) {
+                benches = value.split(",");
+                for (String bench : benches) {
+                    if (!Arrays.asList(ALL).contains(bench)) {
+                        System.out.println("Unknown benchmark: " + bench + ", expected one of " + String.join(",", ALL));
+                        return;
+                    }
+                }
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--iterations=")) {
+                iterations = Integer.parseInt(value);
+            } else if (arg.startsWith("--block-size=")) {
+                blockSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--wheel=")) {
+                wheel = Wheel.of(Integer.parseInt(value));
+            } else if (arg.equals("--factor=trial") || arg.equals("--factor=interval")) {
+                interval = arg.equals("--factor=interval");
+            } else if (arg.equals("--rho")) {
+                rho = true;
+            } else if (arg.equals("--format=csv") || arg.equals("--format=json")) {
+                json = arg.equals("--format=json");
+            } else if (arg.startsWith("--out=")) {
+                out = value;
+            } else {
+                System.out.println("Unknown option: " + arg);
+                return;
+            }
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Need at least one measured iteration.");
+        }
+
+        System.err.println("Word kernels: " + WordKernels.KERNELS.name());
+        List<String> rows = new ArrayList<>();
+        for (String bench : benches) {
+            for (long n : ns) {
+                for (int k : ks) {
+                    if (SINGLE_THREADED.contains(bench) && k != ks[0]) {
+                        continue; // Does not depend on k, one row per n is enough.
+                    }
+                    int threads = SINGLE_THREADED.contains(bench) ? 1 : (k == 0 ? Runtime.getRuntime().availableProcessors() : k);
+
+                    Primes.configure(n, threads, wheel, blockSize, interval, rho);
+                    System.err.printf("%s n=%d k=%d%n", bench, n, threads);
+                    rows.add(measure(bench, n, threads, create(bench, n, threads, wheel, blockSize, interval, rho), warmup, iterations, json));
+                }
+            }
+        }
+
+        try (PrintStream stream = out == null ? new PrintStream(System.out) : new PrintStream(out)) {
+            if (json) {
+                stream.println("[");
+                stream.println(String.join(",\n", rows));
+                stream.println("]");
+            } else {
+                stream.println("benchmark,n,k,iterations,median_ms,mean_ms,min_ms,max_ms,stdev_ms,gc_count,gc_ms,alloc_bytes_per_op");
+                for (String row : rows) {
+                    stream.println(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run one benchmark, and format the result as a row.
+     * @param bench The name of the benchmark.
+     * @param n The number to find primes below.
+     * @param k The number of threads.
+     * @param c The benchmark.
+     * @param warmup Number of warm-up iterations, not recorded.
+     * @param iterations Number of measured iterations.
+     * @param json True for a JSON object, false for a CSV line.
+     * @return The row.
+     */
+    private static String measure(String bench, long n, int k, Case c, int warmup, int iterations, boolean json) {
+        c.setup();
+        for (int i = 0; i < warmup; i++) {
+            c.run();
+        }
+
+        double[] times = new double[iterations];
+        long gcCount = 0, gcTime = 0, allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            System.gc(); // So garbage from the previous iteration is not collected in this one.
+            long gcCountBefore = gcCount(), gcTimeBefore = gcTime(), allocatedBefore = allocated();
+            long startTime = System.nanoTime();
+            c.run();
+            times[i] = (System.nanoTime() - startTime) / 1000000.0;
+            gcCount += gcCount() - gcCountBefore;
+            gcTime += gcTime() - gcTimeBefore;
+            allocated = allocatedBefore < 0 || allocated < 0 ? -1 : allocated + allocated() - allocatedBefore;
+        }
+        c.teardown();
+
+        double[] sorted = times.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(times).average().orElse(0);
+        double variance = Arrays.stream(times).map(t -> (t - mean) * (t - mean)).sum() / iterations;
+        double median = iterations % 2 == 1 ? sorted[iterations / 2] : (sorted[iterations / 2 - 1] + sorted[iterations / 2]) / 2;
+        long allocatedPerOp = allocated < 0 ? -1 : allocated / iterations;
+
+        if (json) {
+            return String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"n\": %d, \"k\": %d, \"iterations\": %d, \"median_ms\": %.3f, "
+                            + "\"mean_ms\": %.3f, \"min_ms\": %.3f, \"max_ms\": %.3f, \"stdev_ms\": %.3f, "
+                            + "\"gc_count\": %d, \"gc_ms\": %d, \"alloc_bytes_per_op\": %d}",
+                    bench, n, k, iterations, median, mean, sorted[0], sorted[iterations - 1], Math.sqrt(variance),
+                    gcCount, gcTime, allocatedPerOp);
+        }
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d",
+                bench, n, k, iterations, median, mean, sorted[0], sorted[iterations - 1], Math.sqrt(variance),
+                gcCount, gcTime, allocatedPerOp);
+    }
+
+    /**
+     * Create a benchmark. Primes.configure() must have been called with the same options.
+     * @param bench The name of the benchmark.
+     * @param n The number to find primes below.
+     * @param k The number of threads.
+     * @param wheel The wheel used to store the sieve.
+     * @param blockSize The size of each block in the segmented sieve.
+     * @param interval True to sieve the 100 numbers at once instead of trial division.
+     * @param rho True to stop trial division at the cube root, and finish with Pollard rho.
+     * @return The benchmark.
+     */
+    private static Case create(String bench, long n, int k, Wheel wheel, int blockSize, boolean interval, boolean rho) {
+        Primes primes = new Primes();
+        long sqrtN = Primes.sqrt(n);
+        // Sieving only ever sets bits, so running it again on the same storage is the same work as on a fresh one.
+        SieveStorage array = new SieveStorage(wheel.bits(n));
+
+        switch (bench) {
+            case "flip": // The unsegmented sieve, every prime walks the entire range.
+                return new Case() {
+                    long[] sievingPrimes;
+
+                    @Override
+                    void setup() {
+                        sievingPrimes = primes.sieveBase(new SieveStorage(wheel.bits(n)), sqrtN);
+                    }
+
+                    @Override
+                    void run() {
+                        for (long prime : sievingPrimes) {
+                            primes.flipInRange(array, prime, prime * prime, n);
+                        }
+                        sink += array.getWord(0);
+                    }
+                };
+            case "next": // Walking through all primes in a finished sieve.
+                return new Case() {
+                    @Override
+                    void setup() {
+                        sieve(primes, array, n, wheel, blockSize);
+                    }
+
+                    @Override
+                    void run() {
+                        long count = 0;
+                        try {
+                            for (long prime = primes.findNextPrime(array, 3); ; prime = primes.findNextPrime(array, prime + 2)) {
+                                count++;
+                            }
+                        } catch (NoMorePrimesException e) {
+                            sink += count;
+                        }
+                    }
+                };
+            case "seq-sieve":
+                return new Case() {
+                    @Override
+                    void run() {
+                        sieve(primes, array, n, wheel, blockSize);
+                        sink += array.getWord(0);
+                    }
+                };
+            case "par-sieve": // The same segments and workers as Primes.par, without the table and factorization.
+                return new Case() {
+                    @Override
+                    void run() {
+                        long[] sievingPrimes = primes.sieveBase(array, sqrtN);
+                        SegmentQueue segments = new SegmentQueue(wheel, sqrtN + 1, n, (long)blockSize * 8 * Primes.SEGMENT_BLOCKS, k);
+                        Thread[] threads = new Thread[k];
+                        for (int i = 0; i < k; i++) {
+                            int id = i;
+                            threads[i] = new Thread(() -> {
+                                SegmentedSieve sieve = new SegmentedSieve(array, wheel, sievingPrimes, blockSize);
+                                for (long segment = segments.take(id); segment >= 0; segment = segments.take(id)) {
+                                    sieve.sieve(segments.start(segment), segments.stop(segment));
+                                }
+                            });
+                            threads[i].start();
+                        }
+                        for (Thread thread : threads) {
+                            try {
+                                thread.join();
+                            } catch (InterruptedException e) {
+                                e.printStackTrace();
+                            }
+                        }
+                        sink += array.getWord(0);
+                    }
+                };
+            case "table":
+                return new Case() {
+                    @Override
+                    void setup() {
+                        sieve(primes, array, n, wheel, blockSize);
+                    }
+
+                    @Override
+                    void run() {
+                        sink += PrimeTable.build(array, wheel, n, k).size();
+                    }
+                };
+            case "index": // Build the rank/select index, then a spread of queries on it.
+                return new Case() {
+                    @Override
+                    void setup() {
+                        sieve(primes, array, n, wheel, blockSize);
+                    }
+
+                    @Override
+                    void run() {
+                        SieveIndex index = SieveIndex.build(array, wheel, n, k);
+                        long count = index.count();
+                        for (long x = 1; x < n; x = x * 3 / 2 + 1) {
+                            sink += index.primeCount(x) + index.nextPrime(x) + index.nthPrime(Math.max((long)((double)count * x / n), 1));
+                        }
+                    }
+                };
+            case "factor":
+                return new Case() {
+                    PrimeTable table;
+                    ForkJoinPool pool;
+
+                    @Override
+                    void setup() {
+                        sieve(primes, array, n, wheel, blockSize);
+                        table = PrimeTable.build(array, wheel, n, k);
+                        pool = new ForkJoinPool(k);
+                    }
+
+                    @Override
+                    void run() {
+                        @SuppressWarnings("unchecked")
+                        ArrayList<UInt128>[] factors = (ArrayList<UInt128>[])new ArrayList<?>[100];
+                        for (int i = 0; i < 100; i++) factors[i] = new ArrayList<UInt128>(24);
+
+                        if (interval) {
+                            IntervalFactorizer factorizer = new IntervalFactorizer(Primes.number(0), 100, table, k, rho);
+                            List<Future<?>> parts = new ArrayList<>();
+                            for (int i = 0; i < k; i++) {
+                                int part = i;
+                                parts.add(pool.submit(() -> factorizer.sieve(part)));
+                            }
+                            for (Future<?> part : parts) {
+                                try {
+                                    part.get();
+                                } catch (InterruptedException | ExecutionException e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                            factorizer.collect(factors);
+                        } else {
+                            FactorTask.factorAll(Primes.number(0), 100, table, factors, pool, rho);
+                        }
+                        sink += factors[0].size();
+                    }
+
+                    @Override
+                    void teardown() {
+                        pool.shutdown();
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown benchmark: " + bench);
+        }
+    }
+
+    /**
+     * Sieve the whole range sequentially, like Primes.seq does.
+     */
+    private static void sieve(Primes primes, SieveStorage array, long n, Wheel wheel, int blockSize) {
+        long sqrtN = Primes.sqrt(n);
+        long[] sievingPrimes = primes.sieveBase(array, sqrtN);
+        new SegmentedSieve(array, wheel, sievingPrimes, blockSize).sieve(sqrtN + 1, n);
+    }
+
+    /**
+     * @return Number of garbage collections so far, in all collectors.
+     */
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    /**
+     * @return Milliseconds spent in garbage collection so far, in all collectors.
+     */
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or a negative number if the JVM can not tell.
+     */
+    private static long allocated() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
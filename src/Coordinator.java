@@ -0,0 +1,143 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sieves the range from the square root of n up to n in several JVMs on this machine, each with its own heap and
+ * garbage collector, and adds up what they found.
+ *
+ * The base primes up to the square root are sieved here once, and written to a PrimeFile every worker reads. The
+ * rest of the bits is split in one range per worker, and every worker is a RangeWorker started with the same java
+ * and class path as this one. The workers report their counts over a socket on the loopback address. With a
+ * directory for the range files, every worker also writes the bits of its range there, starting at the first bit of
+ * the range. All ranges but the first start on a word, so those files line up with the words of a full sieve.
+ */
+public class Coordinator {
+    private static final int POLL_MILLIS = 1000; // How often to check for dead workers while waiting for reports.
+
+    /**
+     * What one worker found.
+     */
+    static class Result {
+        final int id;
+        final long from, to; // The range, [from, to).
+        final long count; // Primes in the range.
+        final long nanos; // Time the worker took, from reading the base primes to sending the report.
+
+        Result(int id, long from, long to, long count, long nanos) {
+            this.id = id;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Sieve the numbers from the base up to n in worker processes.
+     * @param base The sieve of the numbers up to and including sqrtN.
+     * @param wheel The wheel of the base, and the one the workers sieve with.
+     * @param n The number to find primes below.
+     * @param sqrtN The square root of n, rounded down.
+     * @param processes The number of worker processes.
+     * @param threads The number of threads in each worker.
+     * @param blockSize The block size of the workers' sieves.
+     * @param rangeFiles The directory to write the bits of every range to, or null to only count.
+     * @return The result of every range, in order.
+     * @throws IOException If a worker could not be started, failed or did not report, or the files could not be written.
+     */
+    static Result[] run(SieveStorage base, Wheel wheel, long n, long sqrtN, int processes, int threads, int blockSize,
+                        Path rangeFiles) throws IOException {
+        if (processes <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Need at least one process and one thread.");
+        }
+
+        Path dir = Files.createTempDirectory("primes-base");
+        Path baseFile = dir.resolve("base.primes");
+        List<Process> workers = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, processes, InetAddress.getLoopbackAddress())) {
+            PrimeFile.write(base, wheel, sqrtN + 1, baseFile, threads);
+
+            long firstBit = wheel.bits(sqrtN + 1), endBit = Math.max(wheel.bits(n), firstBit);
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < processes; i++) {
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+                    command.add("--add-modules=jdk.incubator.vector"); // So the workers get the same WordKernels.
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add("RangeWorker");
+                command.add("--port=" + server.getLocalPort());
+                command.add("--id=" + i);
+                command.add("--from=" + (i == 0 ? sqrtN + 1 : wheel.numberOf(boundary(firstBit, endBit, i, processes))));
+                command.add("--to=" + (i == processes - 1 ? n : wheel.numberOf(boundary(firstBit, endBit, i + 1, processes))));
+                command.add("--base=" + baseFile);
+                command.add("--wheel=" + wheel.modulus);
+                command.add("--block-size=" + blockSize);
+                command.add("--threads=" + threads);
+                if (rangeFiles != null) {
+                    command.add("--out=" + rangeFiles.resolve("range-" + i + ".bits"));
+                }
+                workers.add(new ProcessBuilder(command).inheritIO().start());
+            }
+
+            Result[] results = new Result[processes];
+            server.setSoTimeout(POLL_MILLIS);
+            for (int received = 0; received < processes; ) {
+                try (Socket socket = server.accept();
+                     DataInputStream report = new DataInputStream(socket.getInputStream())) {
+                    int id = (int)report.readLong();
+                    if (id < 0 || id >= processes || results[id] != null) {
+                        throw new IOException("Unexpected report from worker " + id + ".");
+                    }
+                    results[id] = new Result(id, report.readLong(), report.readLong(), report.readLong(), report.readLong());
+                    received++;
+                } catch (SocketTimeoutException e) {
+                    // A worker that died will never report, so check on them while waiting.
+                    for (int i = 0; i < processes; i++) {
+                        if (results[i] == null && !workers.get(i).isAlive() && workers.get(i).exitValue() != 0) {
+                            throw new IOException("Worker " + i + " failed with exit code " + workers.get(i).exitValue() + ".");
+                        }
+                    }
+                }
+            }
+
+            for (Process worker : workers) {
+                try {
+                    worker.waitFor();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return results;
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy(); // Does nothing to the ones that are done, stops the rest when something failed.
+            }
+            Files.deleteIfExists(baseFile);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /**
+     * @param firstBit The first bit to split.
+     * @param endBit The last bit to split, exclusive.
+     * @param i Which range.
+     * @param processes The number of ranges.
+     * @return The first bit of range i, rounded down to a word but never below firstBit.
+     */
+    private static long boundary(long firstBit, long endBit, int i, int processes) {
+        long bit = firstBit + (endBit - firstBit) / processes * i;
+        return Math.max(bit & -64L, firstBit);
+    }
+}
@@ -1,8 +1,10 @@
-import java.util.TreeMap;
-import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  *
@@ -26,10 +28,16 @@ import java.util.Map;
  * out.writeFactors();
  * --
  *
- * Note: This is meant to be run at the end of your program, 
+ * Note: This is meant to be run at the end of your program,
  * when the results are ready
  *
- * It is NOT thread safe and NOT efficient
+ * It is NOT thread safe
+ *
+ * The factors are kept in parallel arrays of primitive longs (high and low
+ * halves of the base and the factor), and sorted in place when written.
+ * The file is written through one reusable byte buffer, with the digits
+ * put straight into it, so the output is the same as before but does not
+ * create a String or boxed Long per factor.
  *
  * The only reason for this program is to make the correcting of the oblig
  * easier for the TAs.
@@ -40,10 +48,20 @@ import java.util.Map;
 
 public class FactorPrintOut {
 
+    private static final long TEN_18 = 1000000000000000000L;
+    private static final byte[] SEPARATOR = " : ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
     String username;
-    int n;
+    long n;
 
-    TreeMap<Long, LinkedList<Long>> factors = new TreeMap<Long, LinkedList<Long>>();
+    // Entry i is the factor (factorHigh[i], factorLow[i]) of the base (baseHigh[i], baseLow[i]).
+    private long[] baseHigh = new long[256], baseLow = new long[256];
+    private long[] factorHigh = new long[256], factorLow = new long[256];
+    private int size = 0;
+
+    private ByteBuffer buffer;
+    private FileChannel channel;
 
     /**
      * Create an object for unified factor printing
@@ -53,7 +71,7 @@ public class FactorPrintOut {
      * @param n The n given at startup
      */
 
-    public FactorPrintOut(String username, int n) {
+    public FactorPrintOut(String username, long n) {
         this.username = username;
         this.n = n;
 
@@ -69,14 +87,21 @@ public class FactorPrintOut {
 
     public void addFactor(long base, long factor) {
 
-        Long longObj = new Long(base);
+        add(0, base, 0, factor);
 
-        if(!factors.containsKey(longObj))
-            factors.put(longObj, new LinkedList<Long>());
+    }
+
+    /**
+     * Add a factor to a number, for numbers that do not fit in a long
+     *
+     *
+     * @param base This is the number you started to factorize
+     * @param factor This is the factor you have found
+     */
 
-        //System.out.printf("Adding %d to %d\n",factor, base);
+    public void addFactor(UInt128 base, UInt128 factor) {
 
-        factors.get(longObj).add(factor);
+        add(base.high, base.low, factor.high, factor.low);
 
     }
 
@@ -88,38 +113,179 @@ public class FactorPrintOut {
     public void writeFactors() {
         String filename = username + "_" + n + ".txt";
 
-        try (PrintWriter writer = new PrintWriter(filename)) {
-            writer.printf("Factors for n=%d\n", n);
+        try (FileChannel out = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel = out;
+            buffer = ByteBuffer.allocate(1 << 16);
+
+            put("Factors for n=");
+            putNumber(0, n);
+            buffer.put((byte)'\n');
 
-            for(Map.Entry<Long, LinkedList<Long>> entry : factors.entrySet()) {
+            // Sort by base, then by factor, so every base is one run of entries with its factors in order.
+            sort();
+
+            for (int i = 0; i < size; i++) {
+                boolean first = i == 0 || baseHigh[i] != baseHigh[i - 1] || baseLow[i] != baseLow[i - 1];
+                boolean last = i == size - 1 || baseHigh[i] != baseHigh[i + 1] || baseLow[i] != baseLow[i + 1];
 
                 // Starting a new line with the base
-                writer.print(entry.getKey() + " : ");
+                if (first) {
+                    putNumber(baseHigh[i], baseLow[i]);
+                    put(SEPARATOR);
+                }
 
+                // Then print the factors, with a '*' between them
+                putNumber(factorHigh[i], factorLow[i]);
+                if (last) {
+                    put(NEWLINE);
+                } else {
+                    put((byte)'*');
+                }
+            }
 
-                // Sort the factors
-                Collections.sort(entry.getValue());
+            flush();
 
-                // Then print the factors
-                String out = "";
-                for(Long l : entry.getValue())
-                    out += l + "*";
+        } catch(Exception e) {
+            System.out.printf("Got exception when trying to write file %s : %s\n", filename, e.getMessage());
+        } finally {
+            channel = null;
+            buffer = null;
+        }
 
-                // Removing the trailing '*'
-                writer.println(out.substring(0, out.length()-1));
+    }
 
+    /**
+     * Add an entry, growing the arrays when they are full.
+     */
+    private void add(long bHigh, long bLow, long fHigh, long fLow) {
+        if (size == baseLow.length) {
+            baseHigh = Arrays.copyOf(baseHigh, size * 2);
+            baseLow = Arrays.copyOf(baseLow, size * 2);
+            factorHigh = Arrays.copyOf(factorHigh, size * 2);
+            factorLow = Arrays.copyOf(factorLow, size * 2);
+        }
+        baseHigh[size] = bHigh;
+        baseLow[size] = bLow;
+        factorHigh[size] = fHigh;
+        factorLow[size] = fLow;
+        size++;
+    }
 
+    /**
+     * Heap sort of the entries, in place, by base and then by factor, both unsigned.
+     */
+    private void sort() {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i, size);
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (2 * i + 1 < end) {
+            int child = 2 * i + 1;
+            if (child + 1 < end && compare(child + 1, child) > 0) {
+                child++;
+            }
+            if (compare(i, child) >= 0) {
+                return;
             }
+            swap(i, child);
+            i = child;
+        }
+    }
 
-            writer.flush();
-            writer.close();
+    private int compare(int i, int j) {
+        int result = Long.compareUnsigned(baseHigh[i], baseHigh[j]);
+        if (result == 0) result = Long.compareUnsigned(baseLow[i], baseLow[j]);
+        if (result == 0) result = Long.compareUnsigned(factorHigh[i], factorHigh[j]);
+        if (result == 0) result = Long.compareUnsigned(factorLow[i], factorLow[j]);
+        return result;
+    }
 
-        } catch(Exception e) {
-            System.out.printf("Got exception when trying to write file %s : ",filename, e.getMessage());
+    private void swap(int i, int j) {
+        long t;
+        t = baseHigh[i]; baseHigh[i] = baseHigh[j]; baseHigh[j] = t;
+        t = baseLow[i]; baseLow[i] = baseLow[j]; baseLow[j] = t;
+        t = factorHigh[i]; factorHigh[i] = factorHigh[j]; factorHigh[j] = t;
+        t = factorLow[i]; factorLow[i] = factorLow[j]; factorLow[j] = t;
+    }
+
+    /**
+     * Put the decimal digits of an unsigned 128-bit number in the buffer.
+     */
+    private void putNumber(long high, long low) throws IOException {
+        if (high == 0) {
+            putDigits(low, 0);
+            return;
         }
 
+        // Split off the lowest 18 digits, then print the rest in front of them.
+        long quotientHigh = Long.divideUnsigned(high, TEN_18);
+        long quotientLow = UInt128.divideLow(Long.remainderUnsigned(high, TEN_18), low, TEN_18);
+        putNumber(quotientHigh, quotientLow);
+        putDigits(low - quotientLow * TEN_18, 18);
+    }
 
+    /**
+     * Put the decimal digits of an unsigned long in the buffer.
+     * @param value The number.
+     * @param width Pad with zeros in front up to this many digits.
+     */
+    private void putDigits(long value, int width) throws IOException {
+        if (buffer.remaining() < 20) {
+            flush();
+        }
+
+        // Only values of 2^63 and above need unsigned division, and only for the last digit.
+        long rest = value >= 0 ? value / 10 : Long.divideUnsigned(value, 10);
+        int last = (int)(value - rest * 10);
 
+        // Write the digits backwards into the end of the space we need, then move past them.
+        int digits = 1;
+        for (long r = rest; r != 0; r /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, width);
+
+        byte[] array = buffer.array();
+        int end = buffer.position() + digits;
+        array[end - 1] = (byte)('0' + last);
+        for (int i = end - 2; i >= buffer.position(); i--) {
+            array[i] = (byte)('0' + rest % 10);
+            rest /= 10;
+        }
+        buffer.position(end);
+    }
+
+    private void put(String text) throws IOException {
+        put(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        if (buffer.remaining() < bytes.length) {
+            flush();
+        }
+        buffer.put(bytes);
+    }
+
+    private void put(byte b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put(b);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
     }
 
-}
\ No newline at end of file
+}
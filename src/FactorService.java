@@ -0,0 +1,249 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident factorization service. The sieve and prime table are built once and the JIT stays warm, so a request only
+ * pays for factoring its own numbers.
+ *
+ * The protocol is lines over a TCP socket on the loopback address. A line of numbers separated by whitespace, each
+ * between 2 and 2^63 - 1, is answered with one line holding the factors of every number, like "12: 2 2 3; 35: 5 7".
+ * STATS answers with the queue depth, the batches so far and the latency percentiles, QUIT closes the connection. A
+ * line that can not be parsed is answered with ERROR and the reason.
+ *
+ * Every connection has its own thread, which reads a line, puts it on the shared queue and waits for the answer, so
+ * the answers on one connection come in the order of the lines. A worker takes the request at the head of the queue
+ * and its share of the ones behind it, the queue depth divided by the number of workers and at most MAX_BATCH in
+ * all, and factors them one after the other with BatchFactorizer. So a burst is spread over all the workers instead
+ * of one worker taking it while the others wait, and no request waits behind more than its share. A worker never
+ * waits for a batch to fill up: at low load every request is its own batch and is answered at once.
+ *
+ * The latency is the time from reading a line to having its answer, kept for the last LATENCY_SAMPLES requests.
+ */
+public class FactorService {
+    private static final int MAX_BATCH = 64; // Most requests a worker takes from the queue at once.
+    private static final int LATENCY_SAMPLES = 1 << 16; // Latencies kept for the percentiles.
+
+    private final BatchFactorizer factorizer;
+    private final int threads;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private final long[] latencies = new long[LATENCY_SAMPLES]; // Ring of the latest latencies, in nanoseconds.
+    private long answered = 0; // Requests answered, guarded by latencies.
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong maxDepth = new AtomicLong(); // Longest the queue has been, in requests.
+
+    /**
+     * A line of numbers waiting to be factored.
+     */
+    private static class Request {
+        final long[] numbers;
+        final long received; // System.nanoTime() when the line was read.
+        final CompletableFuture<String> answer = new CompletableFuture<>();
+
+        Request(long[] numbers, long received) {
+            this.numbers = numbers;
+            this.received = received;
+        }
+    }
+
+    /**
+     * Constructor.
+     * @param table The odd primes to trial divide with.
+     * @param threads The number of worker threads.
+     */
+    FactorService(PrimeTable table, int threads) {
+        this.factorizer = new BatchFactorizer(table, threads);
+        this.threads = threads;
+    }
+
+    /**
+     * Start the workers and answer connections on the port until the process is stopped.
+     * @param port The port to listen on, on the loopback address.
+     * @throws IOException If the port can not be listened on.
+     */
+    void serve(int port) throws IOException {
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "service-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stats())));
+
+        try (ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            System.out.println("Factoring on " + server.getLocalSocketAddress() + " with " + threads + " workers");
+            for (int i = 0; ; i++) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> handle(socket), "service-connection-" + i);
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    /**
+     * Take batches from the queue and answer them, forever.
+     */
+    private void work() {
+        List<Request> batch = new ArrayList<>(MAX_BATCH);
+        ArrayList<UInt128> found = new ArrayList<>(64);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            int share = (queue.size() + threads - 1) / threads; // Leave the rest for the other workers.
+            queue.drainTo(batch, Math.min(share, MAX_BATCH - 1));
+            batches.incrementAndGet();
+
+            for (Request request : batch) {
+                StringBuilder answer = new StringBuilder();
+                try {
+                    for (long number : request.numbers) {
+                        found.clear();
+                        factorizer.factor(number, found);
+                        found.sort(null); // Pollard rho finds the big factors in any order.
+                        answer.append(answer.length() == 0 ? "" : "; ").append(number).append(':');
+                        for (UInt128 factor : found) {
+                            answer.append(' ').append(factor.longValue());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    request.answer.completeExceptionally(e); // The connection still gets an answer, and the worker goes on.
+                    continue;
+                }
+                record(System.nanoTime() - request.received);
+                request.answer.complete(answer.toString());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Answer the lines of one connection until it is closed.
+     * @param socket The connection.
+     */
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.US_ASCII), false)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.equalsIgnoreCase("QUIT")) {
+                    break;
+                }
+                if (line.equalsIgnoreCase("STATS")) {
+                    out.println(stats());
+                } else {
+                    out.println(answer(line));
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away, nothing to answer.
+        }
+    }
+
+    /**
+     * Queue a line of numbers and wait for its factors.
+     * @param line The line.
+     * @return The answer to send back.
+     */
+    private String answer(String line) {
+        long received = System.nanoTime();
+        long[] numbers;
+        try {
+            numbers = parse(line);
+        } catch (IllegalArgumentException e) {
+            return "ERROR " + e.getMessage();
+        }
+
+        Request request = new Request(numbers, received);
+        queue.add(request);
+        maxDepth.accumulateAndGet(queue.size(), Math::max);
+        try {
+            return request.answer.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return "ERROR " + e.getMessage();
+        }
+    }
+
+    /**
+     * @param line Numbers separated by whitespace.
+     * @return The numbers.
+     * @throws IllegalArgumentException If there are none, or one is not a number between 2 and 2^63 - 1.
+     */
+    private static long[] parse(String line) throws IllegalArgumentException {
+        if (line.isEmpty()) {
+            throw new IllegalArgumentException("No numbers.");
+        }
+        String[] tokens = line.split("\\s+");
+        long[] numbers = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            try {
+                numbers[i] = Long.parseLong(tokens[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + tokens[i]);
+            }
+            if (numbers[i] < 2) {
+                throw new IllegalArgumentException("Can only factorize numbers from 2 to 2^63 - 1, got " + tokens[i] + ".");
+            }
+        }
+        return numbers;
+    }
+
+    /**
+     * Keep the latency of an answered request.
+     * @param nanos The latency.
+     */
+    private void record(long nanos) {
+        synchronized (latencies) {
+            latencies[(int)(answered++ % LATENCY_SAMPLES)] = nanos;
+        }
+    }
+
+    /**
+     * @return The queue depth, the batches and the latency percentiles, on one line.
+     */
+    String stats() {
+        long[] sorted;
+        long total;
+        synchronized (latencies) {
+            total = answered;
+            sorted = Arrays.copyOf(latencies, (int)Math.min(answered, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        return String.format(Locale.ROOT, "queue %d (max %d), %d requests in %d batches, latency p50 %.3f ms, p99 %.3f ms",
+                queue.size(), maxDepth.get(), total, batches.get(), percentile(sorted, 50) / 1000000.0,
+                percentile(sorted, 99) / 1000000.0);
+    }
+
+    /**
+     * @param sorted Sorted values.
+     * @param p The percentile, from 0 to 100.
+     * @return The value at the percentile, nearest rank, or 0 if there are none.
+     */
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fork/join task trial dividing one number by a range of the primes in the table.
+ *
+ * Every number is its own task, so the threads work on different numbers independently and steal work from each
+ * other when they run out. A task only splits when the cofactor it has left is still large, meaning there are many
+ * primes left to test below its square root. The two halves then test disjoint ranges of primes against the same
+ * cofactor.
+ *
+ * Each half stops once prime * prime is above its own cofactor. The primes left untested that way all divide the
+ * cofactor, so there can be at most one of them in total, and it is found as the final cofactor in factorAll().
+ */
+public class FactorTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int CHUNK = 1 << 14; // Number of primes to test between each check for splitting.
+
+    private final PrimeTable table;
+    private final UInt128 remain;
+    private final int from, to;
+    private final ArrayList<UInt128> factors;
+
+    /**
+     * Constructor.
+     * @param table The primes to trial divide with.
+     * @param remain The cofactor to find factors of.
+     * @param from Index of the first prime in the table to test, inclusive.
+     * @param to Index of the last prime in the table to test, exclusive.
+     * @param factors The list to add factors to, shared with the other tasks for the same number.
+     */
+    FactorTask(PrimeTable table, UInt128 remain, int from, int to, ArrayList<UInt128> factors) {
+        this.table = table;
+        this.remain = remain;
+        this.from = from;
+        this.to = to;
+        this.factors = factors;
+    }
+
+    /**
+     * Factorize the numbers top, top - 1, ..., top - (count - 1) on the pool.
+     * @param top The highest number.
+     * @param count The number of numbers.
+     * @param table The primes to trial divide with. Should contain all odd primes up to sqrt(top).
+     * @param factors The lists to add the factors to, factors[i] gets the factors of top - i.
+     * @param pool The pool to run the tasks on.
+     * @param rho True to only trial divide up to the cube root of each number, and finish with Pollard rho.
+     */
+    static void factorAll(UInt128 top, int count, PrimeTable table, ArrayList<UInt128>[] factors, ForkJoinPool pool, boolean rho) {
+        FactorTask[] tasks = new FactorTask[count];
+        UInt128[] remain = new UInt128[count];
+        int[] to = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            remain[i] = top.subtract(i);
+
+            // 2 is an edge case, since the table only has odd primes.
+            while (!remain[i].isZero() && remain[i].isEven()) {
+                factors[i].add(UInt128.of(2));
+                remain[i] = remain[i].divide(2);
+            }
+
+            to[i] = rho ? table.countBelow(PollardRho.trialLimit(remain[i]) + 1) : table.size();
+            tasks[i] = new FactorTask(table, remain[i], 0, to[i], factors[i]);
+            pool.execute(tasks[i]);
+        }
+
+        for (int i = 0; i < count; i++) {
+            tasks[i].join();
+
+            // Whatever is left when all factors in the table are removed is a prime, or two if we stopped early.
+            for (UInt128 factor : factors[i]) {
+                if (factor.longValue() != 2) remain[i] = remain[i].divide(factor.longValue());
+            }
+            if (rho) {
+                PollardRho.finish(remain[i], table, to[i], factors[i]);
+            } else if (remain[i].compareTo(UInt128.ONE) > 0) {
+                factors[i].add(remain[i]);
+            }
+        }
+    }
+
+    @Override
+    protected void compute() {
+        if (from >= to) {
+            return;
+        }
+
+        UInt128 remain = this.remain;
+        long bound = remain.sqrt(); // Largest prime we need to test, so that prime * prime <= remain.
+        int t = from;
+        long prime = table.prime(t);
+        int untilCheck = CHUNK;
+
+        while (prime <= bound) {
+            if (remain.remainder(prime) == 0) {
+                synchronized (factors) {
+                    factors.add(UInt128.of(prime));
+                }
+                remain = remain.divide(prime);
+                bound = remain.sqrt();
+                continue;
+            }
+
+            if (++t == to) {
+                break;
+            }
+            prime += table.gap(t);
+
+            if (--untilCheck == 0) {
+                untilCheck = CHUNK;
+
+                // Split only if there are still many primes left to test below the square root of the cofactor.
+                int end = Math.min(to, table.countBelow(bound + 1));
+                if (end - t >= 2 * CHUNK) {
+                    int mid = t + (end - t) / 2;
+                    invokeAll(
+                            new FactorTask(table, remain, t, mid, factors),
+                            new FactorTask(table, remain, mid, end, factors)
+                    );
+                    return;
+                }
+            }
+        }
+    }
+}
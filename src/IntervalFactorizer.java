@@ -0,0 +1,130 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Factorizes a window of consecutive numbers, top, top - 1, ..., top - (count - 1), all at once.
+ *
+ * Instead of trial dividing every number by every prime, each prime p finds the numbers in the window it divides
+ * with a single modulo: top - i is divisible by p exactly when i = top % p (mod p). So the whole window costs one
+ * modulo per prime, plus a few divisions for the numbers it actually divides.
+ *
+ * The prime table is split into parts, and every part can be processed by its own thread. The hits of each part are
+ * kept separately and only merged in collect(), so the threads never write to shared data.
+ */
+public class IntervalFactorizer {
+    private final UInt128 top;
+    private final int count;
+    private final PrimeTable table;
+    private final boolean rho;
+
+    private final long[][] hitPrimes; // Per part, the primes that divide a number in the window.
+    private final int[][] hitIndexes; // Per part, which number they divide.
+    private final int[] hitCounts;
+
+    /**
+     * Constructor.
+     * @param top The highest number in the window.
+     * @param count The number of numbers in the window.
+     * @param table The primes to sieve the window with. Should contain all odd primes up to sqrt(top).
+     * @param parts The number of parts the table is split into.
+     * @param rho True to only sieve with primes up to the cube root of top, and finish with Pollard rho.
+     */
+    IntervalFactorizer(UInt128 top, int count, PrimeTable table, int parts, boolean rho) {
+        this.top = top;
+        this.count = count;
+        this.table = table;
+        this.rho = rho;
+
+        hitPrimes = new long[parts][16];
+        hitIndexes = new int[parts][16];
+        hitCounts = new int[parts];
+    }
+
+    /**
+     * Sieve the window with the primes in one part of the table.
+     * @param part The part to process.
+     */
+    void sieve(int part) {
+        int parts = hitCounts.length;
+        int primeCount = primeCount();
+        int from = (int)((long)primeCount * part / parts);
+        int to = (int)((long)primeCount * (part + 1) / parts);
+
+        long prime = 1;
+        for (int t = 0; t < from; t++) {
+            prime += table.gap(t);
+        }
+
+        for (int t = from; t < to; t++) {
+            prime += table.gap(t);
+
+            for (long i = top.remainder(prime); i < count; i += prime) {
+                UInt128 rest = top.subtract(i);
+                while (!rest.isZero() && rest.remainder(prime) == 0) { // Once for each time prime divides the number.
+                    add(part, prime, (int)i);
+                    rest = rest.divide(prime);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the results of all the parts, once they are all done. Not thread safe, call it from one thread only.
+     * @param factors The lists to add the factors to, factors[i] gets the factors of top - i.
+     */
+    void collect(ArrayList<UInt128>[] factors) {
+        UInt128[] remain = new UInt128[count];
+        for (int i = 0; i < count; i++) {
+            remain[i] = top.subtract(i);
+
+            // 2 is an edge case, since the table only has odd primes.
+            while (!remain[i].isZero() && remain[i].isEven()) {
+                factors[i].add(UInt128.of(2));
+                remain[i] = remain[i].divide(2);
+            }
+        }
+
+        for (int part = 0; part < hitCounts.length; part++) {
+            for (int h = 0; h < hitCounts[part]; h++) {
+                int i = hitIndexes[part][h];
+                factors[i].add(UInt128.of(hitPrimes[part][h]));
+                remain[i] = remain[i].divide(hitPrimes[part][h]);
+            }
+        }
+
+        // What is left has no factors in the table, so it is a prime bigger than all of them.
+        // If we stopped at the cube root, it can also be the product of two primes.
+        for (int i = 0; i < count; i++) {
+            if (rho) {
+                PollardRho.finish(remain[i], table, primeCount(), factors[i]);
+            } else if (remain[i].compareTo(UInt128.ONE) > 0) {
+                factors[i].add(remain[i]);
+            }
+        }
+    }
+
+    /**
+     * The table may still be being built when this is constructed, so only look at it once sieving starts.
+     * @return Number of primes from the table to use.
+     */
+    private int primeCount() {
+        return rho ? table.countBelow(PollardRho.trialLimit(top) + 1) : table.size();
+    }
+
+    /**
+     * Record a hit in a part.
+     * @param part The part.
+     * @param prime The prime.
+     * @param i The index of the number it divides.
+     */
+    private void add(int part, long prime, int i) {
+        int c = hitCounts[part];
+        if (c == hitPrimes[part].length) {
+            hitPrimes[part] = Arrays.copyOf(hitPrimes[part], c * 2);
+            hitIndexes[part] = Arrays.copyOf(hitIndexes[part], c * 2);
+        }
+        hitPrimes[part][c] = prime;
+        hitIndexes[part][c] = i;
+        hitCounts[part] = c + 1;
+    }
+}
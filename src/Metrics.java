@@ -0,0 +1,164 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Optional instrumentation of a Primes run: how long each phase took, and per thread how much work it did and how
+ * long it waited.
+ *
+ * Everything is off unless enabled is set, and then start() and stop() return at once and the counters are not
+ * touched. The hot loops never write to the counters directly: they count in a local variable and add it here once
+ * per call, so turning the metrics on does not change the memory traffic of the sieve.
+ *
+ * Each thread gets its own Counters the first time it asks for them, so updating them needs no synchronization.
+ * They are read when the run is finished, after the threads have been joined.
+ */
+public class Metrics {
+    static boolean enabled = false;
+
+    private static final Map<String, Long> phases = new LinkedHashMap<>(); // Nanoseconds per phase, this run.
+    private static final List<Counters> threads = new ArrayList<>(); // Counters of every thread, this run.
+    private static final ThreadLocal<Counters> local = new ThreadLocal<>();
+    private static final List<Run> runs = new ArrayList<>(); // Everything measured in the finished runs.
+    private static int generation = 0; // Bumped for every run, so threads reused between runs get new counters.
+
+    /**
+     * The counters of one thread.
+     */
+    static class Counters {
+        final String thread;
+        final int generation;
+
+        long flipped; // Bits set while crossing off multiples.
+        long probes; // Calls to Primes.findNextPrime.
+        long segments; // Segments taken from the shared SegmentQueue.
+        long barrierNanos; // Time spent waiting for the other workers.
+
+        Counters(String thread, int generation) {
+            this.thread = thread;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * @return The counters of the current thread. Only call this when enabled.
+     */
+    static Counters counters() {
+        Counters counters = local.get();
+        if (counters == null || counters.generation != generation) {
+            counters = new Counters(Thread.currentThread().getName(), generation);
+            local.set(counters);
+            synchronized (threads) {
+                threads.add(counters);
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Start timing a phase.
+     * @return The start time to pass to stop(), 0 if not enabled.
+     */
+    static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Stop timing a phase. Time from several calls with the same phase is added up.
+     * @param phase The name of the phase.
+     * @param start What start() returned.
+     */
+    static void stop(String phase, long start) {
+        if (!enabled) {
+            return;
+        }
+        long time = System.nanoTime() - start;
+        synchronized (phases) {
+            phases.merge(phase, time, Long::sum);
+        }
+    }
+
+    /**
+     * Keep what was measured since the last call, and start over for the next run.
+     * @param run The run number.
+     */
+    static void finishRun(int run) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (phases) {
+            synchronized (threads) {
+                runs.add(new Run(run, new LinkedHashMap<>(phases), new ArrayList<>(threads)));
+                phases.clear();
+                threads.clear();
+                generation++;
+            }
+        }
+    }
+
+    /**
+     * Write every finished run to a file, one row per phase and per thread counter.
+     * @param path The file, JSON if it ends with .json and CSV otherwise.
+     * @throws FileNotFoundException If the file can not be created.
+     */
+    static void write(String path) throws FileNotFoundException {
+        try (PrintStream stream = new PrintStream(path)) {
+            if (path.endsWith(".json")) {
+                List<String> records = new ArrayList<>();
+                for (Run run : runs) {
+                    StringBuilder record = new StringBuilder(String.format(Locale.ROOT, "  {\"run\": %d, \"phases_ms\": {", run.run));
+                    String separator = "";
+                    for (Map.Entry<String, Long> phase : run.phases.entrySet()) {
+                        record.append(String.format(Locale.ROOT, "%s\"%s\": %.3f", separator, phase.getKey(), phase.getValue() / 1000000.0));
+                        separator = ", ";
+                    }
+                    record.append("}, \"threads\": [");
+                    separator = "";
+                    for (Counters c : run.threads) {
+                        record.append(String.format(Locale.ROOT,
+                                "%s\n    {\"thread\": \"%s\", \"bits_flipped\": %d, \"next_prime_probes\": %d, "
+                                        + "\"segments_taken\": %d, \"barrier_wait_ms\": %.3f}",
+                                separator, c.thread, c.flipped, c.probes, c.segments, c.barrierNanos / 1000000.0));
+                        separator = ",";
+                    }
+                    records.add(record.append("]}").toString());
+                }
+                stream.println("[");
+                stream.println(String.join(",\n", records));
+                stream.println("]");
+            } else {
+                stream.println("run,kind,name,metric,value");
+                for (Run run : runs) {
+                    for (Map.Entry<String, Long> phase : run.phases.entrySet()) {
+                        stream.printf(Locale.ROOT, "%d,phase,%s,time_ms,%.3f%n", run.run, phase.getKey(), phase.getValue() / 1000000.0);
+                    }
+                    for (Counters c : run.threads) {
+                        stream.printf(Locale.ROOT, "%d,thread,%s,bits_flipped,%d%n", run.run, c.thread, c.flipped);
+                        stream.printf(Locale.ROOT, "%d,thread,%s,next_prime_probes,%d%n", run.run, c.thread, c.probes);
+                        stream.printf(Locale.ROOT, "%d,thread,%s,segments_taken,%d%n", run.run, c.thread, c.segments);
+                        stream.printf(Locale.ROOT, "%d,thread,%s,barrier_wait_ms,%.3f%n", run.run, c.thread, c.barrierNanos / 1000000.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * What was measured in one run.
+     */
+    private static class Run {
+        final int run;
+        final Map<String, Long> phases;
+        final List<Counters> threads;
+
+        Run(int run, Map<String, Long> phases, List<Counters> threads) {
+            this.run = run;
+            this.phases = phases;
+            this.threads = threads;
+        }
+    }
+}
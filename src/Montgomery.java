@@ -0,0 +1,102 @@
+/**
+ * Montgomery arithmetic modulo an odd 64-bit number, so that modular multiplication needs no division.
+ *
+ * Numbers are kept in Montgomery form, a * 2^64 mod m. Multiplying two of them needs two 64x64 bit multiplications
+ * of the high and low halves and a subtraction, instead of a 128-bit remainder.
+ */
+public class Montgomery {
+    final long modulus;
+    final long one; // 1 in Montgomery form, 2^64 mod m.
+    private final long inverse; // -m^-1 mod 2^64.
+    private final long rSquared; // 2^128 mod m, used to convert into Montgomery form.
+
+    /**
+     * Constructor.
+     * @param modulus The modulus, odd and below 2^63.
+     * @throws IllegalArgumentException If the modulus is even or not positive.
+     */
+    Montgomery(long modulus) throws IllegalArgumentException {
+        if ((modulus & 1) == 0 || modulus <= 0) {
+            throw new IllegalArgumentException("Montgomery modulus must be odd and positive.");
+        }
+        this.modulus = modulus;
+
+        // Newton iteration, every step doubles the number of correct low bits.
+        long inv = modulus;
+        for (int i = 0; i < 5; i++) {
+            inv *= 2 - modulus * inv;
+        }
+        inverse = -inv;
+
+        one = Long.remainderUnsigned(-modulus, modulus);
+        long r = one;
+        for (int i = 0; i < 64; i++) { // Double 64 times, since 2^128 = 2^64 * 2^64.
+            r = r << 1; // Fits, since r < m < 2^63.
+            if (Long.compareUnsigned(r, modulus) >= 0) r -= modulus;
+        }
+        rSquared = r;
+    }
+
+    /**
+     * @param a A number below the modulus.
+     * @return a in Montgomery form.
+     */
+    long toMontgomery(long a) {
+        return multiply(a, rSquared);
+    }
+
+    /**
+     * @param a A number in Montgomery form.
+     * @return The normal form of a.
+     */
+    long fromMontgomery(long a) {
+        return reduce(0, a);
+    }
+
+    /**
+     * @param a A number in Montgomery form.
+     * @param b A number in Montgomery form.
+     * @return a * b mod m, in Montgomery form.
+     */
+    long multiply(long a, long b) {
+        return reduce(UInt128.multiplyHigh(a, b), a * b);
+    }
+
+    /**
+     * @param a A number in Montgomery form.
+     * @param b A number in Montgomery form.
+     * @return a + b mod m, in Montgomery form.
+     */
+    long add(long a, long b) {
+        long sum = a + b; // Fits, since both are below m < 2^63.
+        return sum >= modulus ? sum - modulus : sum;
+    }
+
+    /**
+     * @param base A number in Montgomery form.
+     * @param exponent The exponent, treated as unsigned.
+     * @return base ^ exponent mod m, in Montgomery form.
+     */
+    long pow(long base, long exponent) {
+        long result = one;
+        while (exponent != 0) {
+            if ((exponent & 1) != 0) result = multiply(result, base);
+            base = multiply(base, base);
+            exponent >>>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Montgomery reduction, (high * 2^64 + low) / 2^64 mod m.
+     * @param high The high 64 bits, below m.
+     * @param low The low 64 bits.
+     * @return The reduced number, below m.
+     */
+    private long reduce(long high, long low) {
+        long u = low * inverse;
+        // low + u * m is 0 in the low 64 bits by construction, it only carries if low is not 0.
+        long result = high + UInt128.multiplyHigh(u, modulus) + (low != 0 ? 1 : 0);
+        return Long.compareUnsigned(result, modulus) >= 0 ? result - modulus : result;
+    }
+}
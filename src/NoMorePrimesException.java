@@ -2,6 +2,8 @@
  * This class exist purely so that I can differentiate it from InvalidArguementException.
  */
 public class NoMorePrimesException extends Exception {
+    private static final long serialVersionUID = 1L;
+
     public NoMorePrimesException(String ex) {
         super(ex);
     }
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Picks how to run Primes within a memory and core budget: the block size, the number of threads, and how the sieve
+ * is stored.
+ *
+ * The block size is the size of the L1 data cache, read from /sys/devices/system/cpu when it is there, so the bits
+ * a block flips stay in the cache. The thread count is the core budget, capped at the cores the machine has.
+ *
+ * A full run holds two sieves of the whole range at once (the sequential and the parallel one, to compare them),
+ * plus the prime table. The wheels store fewer bits per number the bigger they are, so if the full run does not fit
+ * with the wheel asked for, the bigger wheels are tried. If it does not fit with any of them, the run is streamed
+ * instead: the primes come from PrimeIterators that only hold one window each, and the numbers are trial divided as
+ * the primes go by, so nothing of size n is kept.
+ */
+public class Planner {
+    private static final int DEFAULT_L1 = 32 * 1024; // Cache sizes to use when they can not be read.
+    private static final int DEFAULT_L2 = 256 * 1024;
+    private static final Wheel[] WHEELS = {Wheel.ODD, Wheel.MOD30, Wheel.MOD210}; // Fewest bits per number last.
+
+    final boolean streaming; // True to stream the primes, false for the full sieve.
+    final Wheel wheel;
+    final int blockSize;
+    final int threads;
+    final long peakBytes; // Estimated peak memory use of the plan.
+    final long budget;
+
+    private Planner(boolean streaming, Wheel wheel, int blockSize, int threads, long peakBytes, long budget) {
+        this.streaming = streaming;
+        this.wheel = wheel;
+        this.blockSize = blockSize;
+        this.threads = threads;
+        this.peakBytes = peakBytes;
+        this.budget = budget;
+    }
+
+    /**
+     * Make a plan.
+     * @param n The number to find primes below.
+     * @param memory The memory budget in bytes, capped at the maximum heap size.
+     * @param cores The core budget, 0 for all cores.
+     * @param preferred The wheel to use if it fits.
+     * @return The plan.
+     * @throws IllegalArgumentException If not even a streamed run with one thread fits in the budget.
+     */
+    static Planner plan(long n, long memory, int cores, Wheel preferred) throws IllegalArgumentException {
+        long budget = Math.min(memory, Runtime.getRuntime().maxMemory());
+        int available = Runtime.getRuntime().availableProcessors();
+        int threads = cores <= 0 ? available : Math.min(cores, available);
+        int blockSize = cacheSize(1, DEFAULT_L1);
+
+        boolean passed = false;
+        for (Wheel wheel : WHEELS) {
+            passed |= wheel == preferred;
+            // The table is indexed by int, so it also limits how far a full run can go.
+            if (passed && primesBelow(n) < Integer.MAX_VALUE && fullBytes(n, wheel) + headroom(n) <= budget) {
+                return new Planner(false, wheel, blockSize, threads, fullBytes(n, wheel) + headroom(n), budget);
+            }
+        }
+
+        // Every thread needs its own iterator, so memory can limit the threads too.
+        long perThread = streamBytes(n);
+        long fit = (budget - headroom(n)) / perThread;
+        if (fit < 1) {
+            throw new IllegalArgumentException("A memory budget of " + budget + " bytes is too small, even streaming needs about "
+                    + (perThread + headroom(n)) + " bytes.");
+        }
+        threads = (int)Math.min(threads, fit);
+        return new Planner(true, preferred, blockSize, threads, perThread * threads + headroom(n), budget);
+    }
+
+    /**
+     * @param n The number to find primes below.
+     * @param wheel The wheel used to store the sieve.
+     * @return Bytes used by a full run: two sieves, and a table with a char per prime and a long per 1024 primes.
+     */
+    static long fullBytes(long n, Wheel wheel) {
+        long sieve = (wheel.bits(n) + 63) / 64 * 8;
+        long primes = primesBelow(n);
+        return 2 * sieve + primes * 2 + primes / 1024 * 8;
+    }
+
+    /**
+     * @param n The number to find primes below.
+     * @return Bytes used by each thread of a streamed run: the window of a PrimeIterator, and for every sieving prime
+     *         the prime, its next multiple and wheel position, and its place in a bucket. The iterator finding the
+     *         sieving primes is much smaller, and counted as the same again.
+     */
+    static long streamBytes(long n) {
+        long window = Math.min(cacheSize(2, DEFAULT_L2), 256 * 1024);
+        return 2 * (window + primesBelow(Primes.sqrt(n) + 1) * (8 + 8 + 4 + 4));
+    }
+
+    /**
+     * @param n The number to find primes below.
+     * @return Bytes used by a run besides the sieve or the iterators: the factor lists of the 100 numbers and the
+     *         factors kept for the output, at most 2 * log2(n) of them per number, and a MiB for the rest of the heap.
+     */
+    static long headroom(long n) {
+        long factors = 100 * 2 * (64 - Long.numberOfLeadingZeros(n));
+        return (1L << 20) + factors * (32 + 8 + 32); // An UInt128 and its place in the list, and four longs to print.
+    }
+
+    /**
+     * @param x A number.
+     * @return An upper bound on the number of primes below x, from Rosser and Schoenfeld.
+     */
+    private static long primesBelow(long x) {
+        if (x < 17) {
+            return 6;
+        }
+        return (long)(1.25506 * x / Math.log(x)) + 1;
+    }
+
+    /**
+     * Read the size of a cache of the first CPU from sysfs.
+     * @param level 1 for the L1 data cache, 2 for the L2 cache.
+     * @param fallback The size to use if it can not be read.
+     * @return The size in bytes.
+     */
+    static int cacheSize(int level, int fallback) {
+        Path caches = Paths.get("/sys/devices/system/cpu/cpu0/cache");
+        for (int i = 0; i < 8; i++) {
+            Path index = caches.resolve("index" + i);
+            try {
+                int found = Integer.parseInt(read(index.resolve("level")));
+                String type = read(index.resolve("type"));
+                if (found == level && (type.equals("Data") || type.equals("Unified"))) {
+                    return (int)parseSize(read(index.resolve("size")));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                return fallback; // Not Linux, or no more caches listed.
+            }
+        }
+        return fallback;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+    }
+
+    /**
+     * Parse a size like 48K, 512m or 2g.
+     * @param size The size, a number with an optional K, M or G suffix in either case.
+     * @return The size in bytes.
+     * @throws IllegalArgumentException If it is not a positive size.
+     */
+    static long parseSize(String size) throws IllegalArgumentException {
+        if (size.isEmpty()) {
+            throw new IllegalArgumentException("Empty size.");
+        }
+        int shift = 0;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K': shift = 10; break;
+            case 'M': shift = 20; break;
+            case 'G': shift = 30; break;
+        }
+        long value;
+        try {
+            value = Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a size: " + size);
+        }
+        if (value <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + size);
+        }
+        if (value > Long.MAX_VALUE >> shift) {
+            throw new IllegalArgumentException("Size too big: " + size);
+        }
+        return value << shift;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Plan: %s, wheel %d, block size %d, %d threads, about %d MiB of a %d MiB budget",
+                streaming ? "streamed" : "full sieve", wheel.modulus, blockSize, threads, peakBytes >> 20, budget >> 20);
+    }
+}
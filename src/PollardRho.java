@@ -0,0 +1,200 @@
+import java.util.List;
+
+/**
+ * Factorization of 64-bit cofactors that are left after trial division, without needing primes up to their root.
+ *
+ * Primality is checked with a deterministic Miller-Rabin test, and composites are split with Pollard's rho using
+ * Brent's cycle detection. Both use Montgomery multiplication.
+ *
+ * If trial division has removed all prime factors up to trialLimit(x), the cofactor of x has at most two prime
+ * factors left, so one Miller-Rabin test and at most one split finishes it. Cofactors that do not fit in a long
+ * are trial divided further by finish() until they do.
+ */
+public class PollardRho {
+    // Miller-Rabin with these bases is correct for every number below 2^64.
+    private static final long[] BASES = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+    private static final int[] SMALL_PRIMES = {3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37};
+
+    /**
+     * Integer cube root, the bound trial division has to reach before the rest can be handled here.
+     * @param x A positive number.
+     * @return The largest number c such that c*c*c <= x.
+     */
+    static long trialLimit(UInt128 x) {
+        double approximate = (x.high >>> 1) * 0x1p65 + (x.high & 1) * 0x1p64 + (x.low >>> 1) * 2.0;
+        long c = (long)Math.cbrt(approximate);
+        while (c > 0 && UInt128.multiply(c, c).multiply(c).compareTo(x) > 0) c--;
+        while (UInt128.multiply(c + 1, c + 1).multiply(c + 1).compareTo(x) <= 0) c++;
+        return c;
+    }
+
+    /**
+     * Finish factorizing a cofactor after trial division has stopped, adding the prime factors to the list.
+     * If the cofactor does not fit in a long, trial division goes on with the rest of the table until it does.
+     * @param remain The cofactor, with no prime factors below prime number from in the table.
+     * @param table The primes trial division used.
+     * @param from Index of the first prime in the table trial division did not test.
+     * @param factors The list to add the factors to.
+     */
+    static void finish(UInt128 remain, PrimeTable table, int from, List<UInt128> factors) {
+        if (!remain.fitsInLong()) {
+            long bound = remain.sqrt();
+            long prime = from < table.size() ? table.prime(from) : bound + 1;
+            for (int t = from; prime <= bound && !remain.fitsInLong(); ) {
+                if (remain.remainder(prime) == 0) {
+                    factors.add(UInt128.of(prime));
+                    remain = remain.divide(prime);
+                    bound = remain.sqrt();
+                } else if (++t < table.size()) {
+                    prime += table.gap(t);
+                } else {
+                    break;
+                }
+            }
+
+            if (!remain.fitsInLong()) {
+                factors.add(remain); // No factors up to the end of the table, so it is a prime.
+                return;
+            }
+        }
+
+        factor(remain.longValue(), factors);
+    }
+
+    /**
+     * Add the prime factors of x to the list, in no particular order.
+     * @param x The number to factorize, below 2^63.
+     * @param factors The list to add the factors to.
+     */
+    static void factor(long x, List<UInt128> factors) {
+        if (x <= 1) {
+            return;
+        }
+
+        while ((x & 1) == 0) {
+            factors.add(UInt128.of(2));
+            x >>= 1;
+        }
+        for (int p : SMALL_PRIMES) {
+            while (x % p == 0) {
+                factors.add(UInt128.of(p));
+                x /= p;
+            }
+        }
+        if (x == 1) {
+            return;
+        }
+
+        if (isPrime(x)) {
+            factors.add(UInt128.of(x));
+            return;
+        }
+
+        // Rho can not split squares of primes on its own, so handle perfect squares directly.
+        long root = (long)Math.sqrt(x);
+        while (root * root > x) root--;
+        while ((root + 1) * (root + 1) <= x) root++;
+        if (root * root == x) {
+            factor(root, factors);
+            factor(root, factors);
+            return;
+        }
+
+        long divisor = split(x);
+        factor(divisor, factors);
+        factor(x / divisor, factors);
+    }
+
+    /**
+     * Deterministic Miller-Rabin test.
+     * @param x An odd number above 37.
+     * @return True if x is a prime, false otherwise.
+     */
+    static boolean isPrime(long x) {
+        long d = x - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>>= s;
+
+        Montgomery mont = new Montgomery(x);
+        long minusOne = x - mont.one; // -1 in Montgomery form.
+
+        for (long base : BASES) {
+            long a = base % x;
+            if (a == 0) {
+                continue;
+            }
+
+            long y = mont.pow(mont.toMontgomery(a), d);
+            if (y == mont.one || y == minusOne) {
+                continue;
+            }
+
+            boolean composite = true;
+            for (int r = 1; r < s; r++) {
+                y = mont.multiply(y, y);
+                if (y == minusOne) {
+                    composite = false;
+                    break;
+                }
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find a nontrivial divisor of x with Pollard's rho and Brent's cycle detection.
+     * @param x An odd composite that is not a perfect square.
+     * @return A divisor d, 1 < d < x.
+     */
+    private static long split(long x) {
+        Montgomery mont = new Montgomery(x);
+        final int batch = 128; // Number of differences to multiply together before each gcd.
+
+        for (long c = 1; ; c++) {
+            long increment = mont.toMontgomery(c % x);
+            long y = mont.toMontgomery(2), ys = y, saved = y, product = mont.one;
+            long divisor = 1;
+
+            for (long length = 1; divisor == 1; length <<= 1) {
+                saved = y;
+                for (long i = 0; i < length; i++) {
+                    y = mont.add(mont.multiply(y, y), increment);
+                }
+
+                for (long done = 0; done < length && divisor == 1; done += batch) {
+                    ys = y;
+                    for (long i = 0; i < Math.min(batch, length - done); i++) {
+                        y = mont.add(mont.multiply(y, y), increment);
+                        product = mont.multiply(product, Math.abs(saved - y));
+                    }
+                    divisor = gcd(product, x);
+                }
+            }
+
+            if (divisor == x) {
+                // The batch overshot, redo it one step at a time.
+                do {
+                    ys = mont.add(mont.multiply(ys, ys), increment);
+                    divisor = gcd(Math.abs(saved - ys), x);
+                } while (divisor == 1);
+            }
+
+            if (divisor != x) {
+                return divisor;
+            }
+            // This c failed, try another one.
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
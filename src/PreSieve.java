@@ -0,0 +1,147 @@
+import java.nio.LongBuffer;
+
+/**
+ * The multiples of the smallest sieving primes, as a pattern that is copied into the storage instead of crossing
+ * them off one bit at a time.
+ *
+ * The small primes flip far more bits than the rest, but their multiples repeat: with the odd-only layout, the bits
+ * for 3, 5, 7, 11 and 13 repeat every 3 * 5 * 7 * 11 * 13 = 15015 bits. With the bigger wheels 3, 5 (and 7) are
+ * already gone, and the period is size * 7 * 11 * 13 or size * 11 * 13 bits. The pattern holds 64 periods, which is
+ * a whole number of words, so when the storage starts on a word boundary, word w is simply pattern[w % period].
+ *
+ * The pattern also marks the small primes themselves, so those bits are unset again wherever they are copied.
+ */
+public class PreSieve {
+    private static final long[] PRIMES = {3, 5, 7, 11, 13}; // The primes to pre-sieve, unless they are in the wheel.
+
+    private static final PreSieve ODD = new PreSieve(Wheel.ODD);
+    private static final PreSieve MOD30 = new PreSieve(Wheel.MOD30);
+    private static final PreSieve MOD210 = new PreSieve(Wheel.MOD210);
+
+    final long largest; // The largest pre-sieved prime, sieving has to go on from the next one.
+    private final int period; // Bits in one period of the pattern, and words in the whole pattern.
+    private final long[] pattern;
+    private final long[] primeBits; // The bits of the pre-sieved primes, which must not be set.
+
+    /**
+     * Constructor.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     */
+    private PreSieve(Wheel wheel) {
+        long[] primes = new long[PRIMES.length];
+        int count = 0;
+        int product = 1;
+        for (long prime : PRIMES) {
+            if (wheel.isCandidate(prime)) {
+                primes[count++] = prime;
+                product *= prime;
+            }
+        }
+
+        this.largest = PRIMES[PRIMES.length - 1];
+        this.period = wheel.size * product;
+        this.pattern = new long[period];
+        this.primeBits = new long[count];
+
+        // Bit b + period stands for a number modulus * product higher than bit b, so it has the same small factors.
+        for (long bit = 0; bit < (long)period * 64; bit++) {
+            long number = wheel.numberOf(bit);
+            for (int i = 0; i < count; i++) {
+                if (number % primes[i] == 0) {
+                    pattern[(int)(bit >>> 6)] |= 1L << bit;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            primeBits[i] = wheel.bitOf(primes[i]);
+        }
+    }
+
+    /**
+     * Find the pattern for the given wheel.
+     * @param wheel The wheel.
+     * @return The pattern.
+     */
+    static PreSieve of(Wheel wheel) {
+        if (wheel == Wheel.ODD) return ODD;
+        if (wheel == Wheel.MOD30) return MOD30;
+        return MOD210;
+    }
+
+    /**
+     * Copy the pattern into a range of the storage that has not been sieved yet. Words in the middle of the range
+     * are replaced, but bits outside the range in the words at the ends are kept as they are.
+     * @param array The storage to fill.
+     * @param from The first bit of the storage to fill, inclusive.
+     * @param to The last bit of the storage to fill, exclusive.
+     * @param firstBit The bit that bit 0 of the storage stands for.
+     */
+    void fill(SieveStorage array, long from, long to, long firstBit) {
+        if (from >= to) {
+            return;
+        }
+
+        long firstWord = from >>> 6, lastWord = (to - 1) >>> 6;
+        long firstMask = -1L << from, lastMask = -1L >>> (63 - ((to - 1) & 63));
+        if (firstWord == lastWord) {
+            firstMask &= lastMask;
+        }
+        array.setWord(firstWord, array.getWord(firstWord) | (wordAt(firstWord, firstBit) & firstMask));
+        if (firstWord == lastWord) {
+            return;
+        }
+        array.setWord(lastWord, array.getWord(lastWord) | (wordAt(lastWord, firstBit) & lastMask));
+
+        long word = firstWord + 1;
+        int shift = (int)(firstBit & 63);
+        if (shift != 0) {
+            // Not on a word boundary, so every word is put together from two words of the pattern. The small primes
+            // are all below bit 64, so no word in the middle has any of them to unset.
+            while (word < lastWord) {
+                int offset = (int)((word + (firstBit >>> 6)) % period);
+                int count = (int)Math.min(lastWord - word, period - 1 - offset);
+                if (count == 0) {
+                    array.setWord(word, wordAt(word, firstBit)); // The last word of the pattern wraps around to the first.
+                    word++;
+                    continue;
+                }
+                array.shiftWords(word, pattern, offset, shift, count);
+                word += count;
+            }
+            return;
+        }
+
+        // The small primes are all in word 0, which is never in the middle, so the pattern is copied as it is.
+        while (word < lastWord) {
+            int offset = (int)((word + (firstBit >>> 6)) % period);
+            int count = (int)Math.min(lastWord - word, period - offset);
+            array.putWords(word, LongBuffer.wrap(pattern, offset, count));
+            word += count;
+        }
+    }
+
+    /**
+     * @param word The index of a word in the storage.
+     * @param firstBit The bit that bit 0 of the storage stands for.
+     * @return The pattern for the 64 bits of the word.
+     */
+    private long wordAt(long word, long firstBit) {
+        long start = (word << 6) + firstBit;
+        long offset = start % ((long)period * 64);
+        int index = (int)(offset >>> 6), shift = (int)(offset & 63);
+
+        long value = pattern[index] >>> shift;
+        if (shift != 0) {
+            value |= pattern[index + 1 < period ? index + 1 : 0] << (64 - shift);
+        }
+
+        // Unset the small primes themselves.
+        for (long bit : primeBits) {
+            if (bit >= start && bit < start + 64) {
+                value &= ~(1L << (bit - start));
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,164 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Counts the primes up to x without sieving up to x, with Lucy_Hedgehog's method, in O(x^(3/4)) time and
+ * O(sqrt(x)) memory.
+ *
+ * S(v) is the number of integers from 2 to v that are left after sieving with the primes below p. It only has to be
+ * known for the values v = x / i, of which there are about 2 sqrt(x): small[v] holds S(v) for v up to sqrt(x), and
+ * large[i] holds S(x / i). Sieving with the next prime p removes the numbers whose smallest prime factor is p:
+ *   S(v) -= S(v / p) - S(p - 1), for every v >= p * p.
+ * When all primes up to sqrt(x) are done, S(x) = large[1] is the number of primes up to x.
+ *
+ * The sieving primes come from PrimeIterator, so the sieve is only used up to sqrt(x).
+ *
+ * Within one prime, an update of S(v) reads S(v / p), which may itself be updated in the same step. The old value is
+ * needed, so the updates are grouped in levels by powers of p, where every level only reads from a level that is
+ * updated after it. All updates within a level are independent, and big levels are split over the pool.
+ */
+public class PrimeCounter {
+    private static final int PARALLEL_THRESHOLD = 1 << 14; // Updates in a level before it is worth splitting.
+
+    private final long x;
+    private final int root;
+    private final long[] small; // small[v] = S(v), for v up to root.
+    private final long[] large; // large[i] = S(x / i), for i up to root.
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor.
+     * @param x The number to count the primes up to, inclusive.
+     * @param pool The pool to split big levels over, or null to do everything in the calling thread.
+     */
+    private PrimeCounter(long x, ForkJoinPool pool) {
+        this.x = x;
+        this.root = (int)Primes.sqrt(x);
+        this.small = new long[root + 1];
+        this.large = new long[root + 1];
+        this.pool = pool;
+
+        for (int v = 1; v <= root; v++) {
+            small[v] = v - 1;
+            large[v] = x / v - 1;
+        }
+    }
+
+    /**
+     * Count the primes up to x.
+     * @param x The number to count the primes up to, inclusive. Below 2^62.
+     * @param pool The pool to split the work over, or null to do everything in the calling thread.
+     * @return The number of primes p <= x.
+     * @throws IllegalArgumentException If x is negative.
+     */
+    static long count(long x, ForkJoinPool pool) throws IllegalArgumentException {
+        if (x < 0) {
+            throw new IllegalArgumentException("Can not count primes up to a negative number.");
+        }
+        if (x < 2) {
+            return 0;
+        }
+
+        PrimeCounter counter = new PrimeCounter(x, pool);
+        PrimeIterator primes = new PrimeIterator(2, counter.root + 1);
+        while (primes.hasNext()) {
+            counter.sieve((int)primes.nextLong());
+        }
+        return counter.large[1];
+    }
+
+    /**
+     * Remove the numbers whose smallest prime factor is p from all S(v).
+     * @param p The next prime, at most root.
+     */
+    private void sieve(int p) {
+        long below = small[p - 1]; // S(p - 1), the number of primes below p.
+        long square = (long)p * p;
+
+        // Large values first, since they read small values that have not been updated yet.
+        // large[i] for i <= top is updated, and reads large[i * p], so the smallest i go first.
+        int top = (int)Math.min(root, x / square);
+        int[] bounds = new int[64]; // Level t is i in (top / p^(t+1), top / p^t].
+        int levels = 0;
+        for (int bound = top; bound > 0; bound /= p) {
+            bounds[levels++] = bound;
+        }
+        for (int t = levels - 1; t >= 0; t--) {
+            int from = (t + 1 < levels ? bounds[t + 1] : 0) + 1, to = bounds[t];
+            run(from, to, (a, b) -> {
+                for (int i = a; i <= b; i++) {
+                    long ip = (long)i * p;
+                    large[i] -= (ip <= root ? large[(int)ip] : small[(int)(x / ip)]) - below;
+                }
+            });
+        }
+
+        // Small values, small[v] for v >= p * p reads small[v / p], so the biggest v go first.
+        if (square <= root) {
+            for (int high = root; high >= square; ) {
+                int low = (int)Math.max(high / p, square - 1);
+                int from = low + 1, to = high;
+                run(from, to, (a, b) -> {
+                    for (int v = a; v <= b; v++) {
+                        small[v] -= small[v / p] - below;
+                    }
+                });
+                high = low;
+            }
+        }
+    }
+
+    /**
+     * A range of independent updates.
+     */
+    private interface Body {
+        /**
+         * @param from First index, inclusive.
+         * @param to Last index, inclusive.
+         */
+        void run(int from, int to);
+    }
+
+    /**
+     * Run the updates of one level, on the pool if it is big enough to be worth it.
+     * @param from First index, inclusive.
+     * @param to Last index, inclusive.
+     * @param body The updates.
+     */
+    private void run(int from, int to, Body body) {
+        if (from > to) {
+            return;
+        }
+        if (pool == null || to - from < PARALLEL_THRESHOLD) {
+            body.run(from, to);
+        } else {
+            pool.invoke(new Split(from, to, body));
+        }
+    }
+
+    /**
+     * Fork/join task splitting a level in halves until the parts are small.
+     */
+    private static class Split extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to;
+        private final Body body;
+
+        Split(int from, int to, Body body) {
+            this.from = from;
+            this.to = to;
+            this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < PARALLEL_THRESHOLD) {
+                body.run(from, to);
+                return;
+            }
+            int mid = from + (to - from) / 2;
+            invokeAll(new Split(from, mid, body), new Split(mid + 1, to, body));
+        }
+    }
+}
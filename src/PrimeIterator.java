@@ -0,0 +1,153 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Streams the primes in a range in increasing order, without a sieve of the whole range.
+ *
+ * Only the sieving primes up to the square root of the end are kept, plus one window of the sieve. The window is
+ * sieved with a SegmentedSieve, scanned for primes, then cleared and moved on to the next range. Since the windows
+ * follow each other, the sieve keeps the next multiple of every prime between them, and no prime has to find its
+ * first multiple more than once. The sieving primes are found the same way, by a smaller iterator.
+ *
+ * Memory use is about 8 bytes per prime up to sqrt(to), plus the window, so going up to 10^12 needs well under
+ * 2 MB of sieving primes.
+ */
+public class PrimeIterator implements PrimitiveIterator.OfLong {
+    private static final int WINDOW_SIZE = 256 * 1024; // Bytes in the window, so it stays in the L2 cache.
+    private static final int BLOCK_SIZE = 32 * 1024; // Bytes per block within the window.
+
+    private final Wheel wheel;
+    private final long from, to;
+    private final long endBit; // Bit of the first number not to return.
+    private final SieveStorage window;
+    private final SegmentedSieve sieve;
+
+    private int wheelPrime = 0; // Index of the next wheel prime to consider, they are not in the sieve.
+    private long low, high; // The bits the window holds right now.
+    private long bit; // The next bit to look at.
+    private long next = -1; // The next prime to return, -1 if it has not been found yet.
+
+    /**
+     * Constructor for the odd-only layout.
+     * @param from The lowest number to consider, inclusive.
+     * @param to The highest number to consider, exclusive.
+     */
+    PrimeIterator(long from, long to) {
+        this(from, to, Wheel.ODD);
+    }
+
+    /**
+     * Constructor.
+     * @param from The lowest number to consider, inclusive.
+     * @param to The highest number to consider, exclusive.
+     * @param wheel The wheel to lay out the window with.
+     * @throws IllegalArgumentException If from is negative or to is below from.
+     */
+    PrimeIterator(long from, long to, Wheel wheel) throws IllegalArgumentException {
+        if (from < 0 || to < from) {
+            throw new IllegalArgumentException("Range must be positive and not end before it starts.");
+        }
+
+        this.wheel = wheel;
+        this.from = from;
+        this.to = to;
+        this.endBit = wheel.bits(to);
+
+        // Bit 0 is 1, which the sieve never marks, so start at the first prime the sieve knows about.
+        low = high = bit = wheel.bits(Math.max(from, wheel.firstSievingPrime()));
+
+        // Small ranges, like the ones for the sieving primes, do not need a whole window.
+        long windowBits = Math.min((long)WINDOW_SIZE * 8, (Math.max(endBit - low, 0) + 63) & -64L);
+        this.window = new SieveStorage(Math.max(windowBits, 64));
+        this.sieve = new SegmentedSieve(window, wheel, sievingPrimes(wheel, to), BLOCK_SIZE);
+    }
+
+    /**
+     * @param from The lowest number to consider, inclusive.
+     * @param to The highest number to consider, exclusive.
+     * @return The primes from and including from, up to to, in increasing order.
+     */
+    static LongStream stream(long from, long to) {
+        int characteristics = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL;
+        return StreamSupport.longStream(Spliterators.spliteratorUnknownSize(new PrimeIterator(from, to), characteristics), false);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == -1) {
+            next = find();
+        }
+        return next != -1;
+    }
+
+    @Override
+    public long nextLong() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more primes.");
+        }
+        long prime = next;
+        next = -1;
+        return prime;
+    }
+
+    /**
+     * Find the next prime, sieving the next window when the current one is used up.
+     * @return The prime, or -1 if there are no more.
+     */
+    private long find() {
+        // The primes in the wheel are not stored, return them first.
+        while (wheelPrime < wheel.wheelPrimes.length) {
+            long prime = wheel.wheelPrimes[wheelPrime++];
+            if (prime >= from && prime < to) {
+                return prime;
+            }
+        }
+
+        while (true) {
+            if (bit < high) {
+                long found = window.nextClear(bit - low, high - low);
+                if (found != -1) {
+                    bit = low + found + 1;
+                    return wheel.numberOf(low + found);
+                }
+            }
+            if (high >= endBit) {
+                return -1;
+            }
+
+            // Move the window on to the next range. It starts where the last one stopped, so the sieve continues.
+            low = high;
+            high = Math.min(low + window.bits(), endBit);
+            bit = low;
+            window.clear();
+            sieve.sieve(wheel.numberOf(low), wheel.numberOf(high), low);
+        }
+    }
+
+    /**
+     * @param wheel The wheel the sieve uses.
+     * @param to The end of the range to sieve, exclusive.
+     * @return Every prime not in the wheel whose square is below to, ascending.
+     */
+    private static long[] sievingPrimes(Wheel wheel, long to) {
+        long root = to > 0 ? Primes.sqrt(to - 1) : 0;
+        long[] primes = new long[16];
+        int count = 0;
+
+        if (root >= wheel.firstSievingPrime()) {
+            PrimeIterator base = new PrimeIterator(wheel.firstSievingPrime(), root + 1, wheel);
+            while (base.hasNext()) {
+                if (count == primes.length) {
+                    primes = Arrays.copyOf(primes, count * 2);
+                }
+                primes[count++] = base.nextLong();
+            }
+        }
+        return Arrays.copyOf(primes, count);
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Compact table of all odd primes in the sieve, extracted once so that factorization does not have to scan the
+ * sieve again for every trial divisor.
+ *
+ * Primes are stored as the gap to the previous prime, halved since the gap between two odd primes is always even.
+ * A char holds gaps up to 131070, far more than any gap between primes below 2^64. Walking the table is then
+ * just adding gaps, starting at 1.
+ *
+ * The table is built in parts, so each thread can extract the primes in its own segment of the sieve:
+ * count(part) for all parts, then allocate(), then fill(part) for all parts, then link().
+ *
+ * Every 1024th prime is also stored in full, so prime(i) and countBelow(x) only have to add up a few gaps.
+ */
+public class PrimeTable {
+    private final SieveStorage array;
+    private final Wheel wheel;
+    private final long[] bounds; // Part i covers the bits from bounds[i] to bounds[i + 1].
+    private final int[] counts, offsets;
+    private final long[] first, last; // First and last prime found in each part.
+    private final int wheelCount; // Number of odd wheel primes at the start of the table.
+
+    private static final int CHECKPOINT_SHIFT = 10;
+
+    private char[] halfGaps;
+    private long[] checkpoints; // checkpoints[c] is prime number c * 1024 in the table.
+    private int size;
+
+    /**
+     * Constructor, does not read the sieve yet.
+     * @param array The sieved storage to extract primes from.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param bounds The bit boundaries of the parts. Inner boundaries should be on a word boundary if the parts are
+     *               filled by different threads.
+     */
+    PrimeTable(SieveStorage array, Wheel wheel, long[] bounds) {
+        this.array = array;
+        this.wheel = wheel;
+        this.bounds = bounds;
+
+        int parts = bounds.length - 1;
+        counts = new int[parts];
+        offsets = new int[parts];
+        first = new long[parts];
+        last = new long[parts];
+
+        wheelCount = wheel.wheelPrimes.length - 1; // All wheel primes but 2.
+    }
+
+    /**
+     * Extract all odd primes below limit, using the given number of threads.
+     * @param array The sieved storage to extract primes from.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param limit The highest number to include, exclusive.
+     * @param threads The number of threads to use.
+     * @return The table.
+     */
+    static PrimeTable build(SieveStorage array, Wheel wheel, long limit, int threads) {
+        long from = wheel.bits(wheel.firstSievingPrime());
+        long to = Math.max(wheel.bits(limit), from);
+        long words = (to - from) / 64 / threads;
+
+        long[] bounds = new long[threads + 1];
+        bounds[0] = from;
+        for (int i = 1; i < threads; i++) {
+            bounds[i] = Math.min(((from + 63) / 64 + i * words) * 64, to);
+        }
+        bounds[threads] = to;
+
+        PrimeTable table = new PrimeTable(array, wheel, bounds);
+        if (threads == 1) {
+            table.count(0);
+            table.allocate();
+            table.fill(0);
+            table.link();
+            return table;
+        }
+
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int part = i;
+            workers[i] = new Thread(() -> table.count(part));
+            workers[i].start();
+        }
+        join(workers);
+        table.allocate();
+        for (int i = 0; i < threads; i++) {
+            final int part = i;
+            workers[i] = new Thread(() -> table.fill(part));
+            workers[i].start();
+        }
+        join(workers);
+        table.link();
+
+        return table;
+    }
+
+    /**
+     * First pass, count the primes in a part.
+     * @param part The part to count.
+     */
+    void count(int part) {
+        int count = 0;
+        for (long bit = array.nextClear(bounds[part], bounds[part + 1]); bit != -1;
+             bit = array.nextClear(bit + 1, bounds[part + 1])) {
+            count++;
+        }
+        counts[part] = count;
+    }
+
+    /**
+     * Allocate the table once all parts are counted. Not thread safe, call it from one thread only.
+     * @throws IllegalStateException If there are too many primes to fit in one table.
+     */
+    void allocate() throws IllegalStateException {
+        long total = wheelCount;
+        for (int i = 0; i < counts.length; i++) {
+            offsets[i] = (int)Math.min(total, Integer.MAX_VALUE);
+            total += counts[i];
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many primes for the prime table: " + total);
+        }
+
+        size = (int)total;
+        halfGaps = new char[size];
+        checkpoints = new long[(size >>> CHECKPOINT_SHIFT) + 1];
+
+        long previous = 1;
+        for (int i = 0; i < wheelCount; i++) {
+            long prime = wheel.wheelPrimes[i + 1];
+            halfGaps[i] = (char)((prime - previous) / 2);
+            if ((i & ((1 << CHECKPOINT_SHIFT) - 1)) == 0) checkpoints[i >>> CHECKPOINT_SHIFT] = prime;
+            previous = prime;
+        }
+    }
+
+    /**
+     * Second pass, write the gaps between the primes in a part. The gap to the first prime is written by link().
+     * @param part The part to fill.
+     */
+    void fill(int part) {
+        int index = offsets[part];
+        long previous = 0;
+        for (long bit = array.nextClear(bounds[part], bounds[part + 1]); bit != -1;
+             bit = array.nextClear(bit + 1, bounds[part + 1])) {
+            long prime = wheel.numberOf(bit);
+            if (previous == 0) {
+                first[part] = prime;
+            } else {
+                halfGaps[index] = (char)((prime - previous) / 2);
+            }
+            if ((index & ((1 << CHECKPOINT_SHIFT) - 1)) == 0) checkpoints[index >>> CHECKPOINT_SHIFT] = prime;
+            index++;
+            previous = prime;
+        }
+        last[part] = previous;
+    }
+
+    /**
+     * Write the gaps between the parts once all of them are filled. Not thread safe, call it from one thread only.
+     */
+    void link() {
+        long previous = wheelCount > 0 ? wheel.wheelPrimes[wheelCount] : 1;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                halfGaps[offsets[i]] = (char)((first[i] - previous) / 2);
+                previous = last[i];
+            }
+        }
+    }
+
+    /**
+     * @return The number of odd primes in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i The index of a prime in the table.
+     * @return The distance from the previous prime to prime i. For the first prime, the distance from 1.
+     */
+    long gap(int i) {
+        return (long)halfGaps[i] << 1;
+    }
+
+    /**
+     * @param i The index of a prime in the table.
+     * @return Prime number i, counting from 0.
+     */
+    long prime(int i) {
+        int c = i >>> CHECKPOINT_SHIFT;
+        long prime = checkpoints[c];
+        for (int j = (c << CHECKPOINT_SHIFT) + 1; j <= i; j++) {
+            prime += gap(j);
+        }
+        return prime;
+    }
+
+    /**
+     * @param x A number.
+     * @return The number of primes in the table below x, which is also the index of the first prime >= x.
+     */
+    int countBelow(long x) {
+        if (size == 0 || checkpoints[0] >= x) {
+            return 0;
+        }
+
+        // Find the last checkpoint below x, then walk from there.
+        int low = 0, high = (size - 1) >>> CHECKPOINT_SHIFT;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (checkpoints[mid] < x) low = mid;
+            else high = mid - 1;
+        }
+
+        int i = low << CHECKPOINT_SHIFT;
+        long prime = checkpoints[low];
+        while (i + 1 < size && prime + gap(i + 1) < x) {
+            prime += gap(++i);
+        }
+        return i + 1;
+    }
+
+    /**
+     * Wait for all the threads to finish.
+     * @param threads The threads.
+     */
+    private static void join(Thread[] threads) {
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                //e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,39 +1,203 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Primes {
 
     private static long n;
     private static int k;
+    private static int blockSize = 32 * 1024; // Bytes per sieve block, default fits in most L1 caches.
+    private static Wheel wheel = Wheel.ODD; // Which numbers are stored in the sieve, odd numbers by default.
+    private static boolean intervalFactoring = false; // Sieve the 100 numbers at once instead of trial division.
+    private static boolean rhoFactoring = false; // Stop trial division at the cube root, and finish with Pollard rho.
+    private static SieveCache cache = null; // Where to load and save the finished sieve, if anywhere.
+
+    static final int SEGMENT_BLOCKS = 4; // Blocks per segment handed out to the parallel sieve workers.
+    private static final long COUNT_CHECK_LIMIT = 1000000000L; // Largest n to check --count against the sieve for.
 
     private static final int runs = 7;
     private static final int medianIndex = 4;
     private static double[] seqTiming = new double[runs];
     private static double[] parTiming = new double[runs];
 
-    private long globalRemain;
-
     /**
      * Main.
      * @param args The program arguments.
      *             0 = N - The number to find primes below.
      *             1 = K - The number of threads to use to do the work.
+     *             Options after that:
+     *             --block-size=BYTES - The size of each block in the segmented sieve.
+     *             --wheel=2|30|210 - The wheel used to store the sieve, 2 stores only odd numbers.
+     *             --factor=trial|interval - How to factorize, trial division or sieving the 100 numbers at once.
+     *             --rho - Only use primes up to the cube root, then Miller-Rabin and Pollard rho for the rest.
+     *             --cache=FILE - Load the sieve from this file if it is there, and save it there after sieving.
+     *             --cache-overwrite - Replace the cache file even if it holds a sieve for another wheel.
+     *             --batch=FILE - Factorize the numbers in FILE (- for standard in) instead, with primes below N.
+     *             --count - Only count the primes below N, without sieving up to N.
+     *             --metrics=FILE - Record phase times and per-thread counters for every run, as JSON or CSV.
+     *             --export=FILE - Only sieve below N, and write the primes to FILE as a PrimeFile.
+     *             --memory=SIZE - Plan the run to fit in SIZE bytes (K, M or G suffix), streaming if the sieve does
+     *                             not fit. Also planned within the maximum heap size when K is 0. With --batch,
+     *                             --serve or --export the sieve has to fit, and it cannot be used with --count.
+     *             --processes=P - Only count the primes below N, sieving above the square root in P worker JVMs.
+     *             --range-files=DIR - With --processes, also have every worker write the bits of its range to DIR.
+     *             --serve=PORT - Keep the primes below N, and factorize the numbers sent to PORT on the loopback
+     *                            address until stopped, see FactorService.
      */
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java Primes [Ceiling, highest number to check for] [Number of threads to use, 0 to use number of cores the machine has]");
+            System.out.println("Usage: java Primes [Ceiling, highest number to check for] [Number of threads to use, 0 to use number of cores the machine has] [Options]");
+            System.out.println("Options:");
+            System.out.println("  --block-size=BYTES  Size of each block in the segmented sieve, default " + blockSize + ".");
+            System.out.println("  --wheel=2|30|210    Wheel modulus for the sieve layout, default " + wheel.modulus + " (odd numbers only).");
+            System.out.println("  --factor=trial|interval  Trial divide each number, or sieve all 100 numbers at once. Default trial.");
+            System.out.println("  --rho               Only divide by primes up to the cube root, finish with Miller-Rabin and Pollard rho.");
+            System.out.println("  --cache=FILE        Reuse the sieve saved in FILE, sieve only what is missing and save it back.");
+            System.out.println("  --cache-overwrite   Replace the --cache file even when it was saved with another wheel.");
+            System.out.println("  --batch=FILE        Factorize the numbers in FILE, or standard in for -, trial dividing by primes below N.");
+            System.out.println("  --count             Only count the primes below N, with Lucy_Hedgehog's method. Checked against the sieve for small N.");
+            System.out.println("  --metrics=FILE      Time each phase and count the work per thread, written to FILE as JSON (.json) or CSV.");
+            System.out.println("  --export=FILE       Only sieve below N, and write the primes to FILE as compressed gaps, then read them back.");
+            System.out.println("  --memory=SIZE       Pick block size, threads and wheel to fit in SIZE (like 512m or 4g), or stream the primes (not with --batch, --serve or --export).");
+            System.out.println("  --processes=P       Only count the primes below N, splitting the sieve over P worker JVMs with K threads in total.");
+            System.out.println("  --range-files=DIR   With --processes, every worker also writes the bits of its range to DIR.");
+            System.out.println("  --serve=PORT        Sieve once, then factorize lines of numbers sent to PORT on localhost until stopped.");
             return;
         }
         n = Long.parseLong(args[0]);
         k = Integer.parseInt(args[1]);
-        if (k == 0) k = Runtime.getRuntime().availableProcessors();
+        String cachePath = null;
+        boolean cacheOverwrite = false;
+        String batchPath = null;
+        boolean countOnly = false;
+        String metricsPath = null;
+        String exportPath = null;
+        long memory = 0;
+        boolean blockSizeSet = false;
+        int processes = 0;
+        String rangePath = null;
+        int servePort = -1;
+
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].startsWith("--block-size=")) {
+                blockSize = Integer.parseInt(args[i].substring("--block-size=".length()));
+                blockSizeSet = true;
+            } else if (args[i].startsWith("--wheel=")) {
+                wheel = Wheel.of(Integer.parseInt(args[i].substring("--wheel=".length())));
+            } else if (args[i].equals("--factor=trial") || args[i].equals("--factor=interval")) {
+                intervalFactoring = args[i].equals("--factor=interval");
+            } else if (args[i].equals("--rho")) {
+                rhoFactoring = true;
+            } else if (args[i].startsWith("--cache=")) {
+                cachePath = args[i].substring("--cache=".length());
+            } else if (args[i].equals("--cache-overwrite")) {
+                cacheOverwrite = true;
+            } else if (args[i].startsWith("--batch=")) {
+                batchPath = args[i].substring("--batch=".length());
+            } else if (args[i].equals("--count")) {
+                countOnly = true;
+            } else if (args[i].startsWith("--metrics=")) {
+                metricsPath = args[i].substring("--metrics=".length());
+                Metrics.enabled = true;
+            } else if (args[i].startsWith("--export=")) {
+                exportPath = args[i].substring("--export=".length());
+            } else if (args[i].startsWith("--memory=")) {
+                try {
+                    memory = Planner.parseSize(args[i].substring("--memory=".length()));
+                } catch (IllegalArgumentException e) { // Also a NumberFormatException from the digits.
+                    System.out.println("Bad --memory: " + e.getMessage());
+                    return;
+                }
+            } else if (args[i].startsWith("--processes=")) {
+                processes = Integer.parseInt(args[i].substring("--processes=".length()));
+            } else if (args[i].startsWith("--range-files=")) {
+                rangePath = args[i].substring("--range-files=".length());
+            } else if (args[i].startsWith("--serve=")) {
+                servePort = Integer.parseInt(args[i].substring("--serve=".length()));
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        // Counting never holds more than about sqrt(N) numbers, there is nothing for a budget to decide.
+        if (memory > 0 && countOnly) {
+            System.out.println("--memory does not apply to --count, it only needs about sqrt(N) memory.");
+            return;
+        }
+
+        // With a memory budget, or no thread count, fit the run to the machine instead of taking everything.
+        boolean streaming = false;
+        if (memory > 0 || k <= 0) {
+            Planner plan;
+            try {
+                plan = Planner.plan(n, memory > 0 ? memory : Long.MAX_VALUE, k, wheel);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return;
+            }
+            System.out.println(plan);
+            k = plan.threads;
+            wheel = plan.wheel;
+            if (!blockSizeSet) blockSize = plan.blockSize;
+            streaming = plan.streaming;
+
+            // These keep the whole sieve below N, they cannot stream the primes instead.
+            String fullSieve = batchPath != null ? "--batch" : servePort >= 0 ? "--serve" : exportPath != null ? "--export" : null;
+            if (streaming && fullSieve != null) {
+                System.out.println(fullSieve + " needs the full sieve below N, which does not fit in the memory budget.");
+                return;
+            }
+        }
+
+        if (cachePath != null) {
+            cache = new SieveCache(Paths.get(cachePath), wheel, cacheOverwrite); // After the loop, so it gets the chosen wheel.
+        }
+
+        if (batchPath != null) {
+            batch(batchPath);
+            return;
+        }
+        if (servePort >= 0) {
+            serve(servePort);
+            return;
+        }
+        if (countOnly) {
+            count();
+            return;
+        }
+        if (exportPath != null) {
+            export(Paths.get(exportPath));
+            return;
+        }
+        if (processes > 0) {
+            distribute(processes, rangePath == null ? null : Paths.get(rangePath));
+            return;
+        }
+        if (streaming) {
+            stream();
+            return;
+        }
 
         for (int i = 0; i < runs; i++) {
             new Primes(i);
+            Metrics.finishRun(i);
+        }
+        if (metricsPath != null) {
+            try {
+                Metrics.write(metricsPath);
+            } catch (IOException e) {
+                System.out.println("Could not write the metrics: " + e.getMessage());
+            }
         }
 
         Arrays.sort(seqTiming);
@@ -47,20 +211,45 @@ public class Primes {
         System.out.println("\nn = " + n);
     }
 
+    /**
+     * Set the options main would otherwise parse, for running the phases from outside, like Benchmark does.
+     * @param n The number to find primes below.
+     * @param k The number of threads to use.
+     * @param wheel The wheel used to store the sieve.
+     * @param blockSize The size of each block in the segmented sieve, in bytes.
+     * @param intervalFactoring True to sieve the 100 numbers at once instead of trial division.
+     * @param rhoFactoring True to stop trial division at the cube root, and finish with Pollard rho.
+     */
+    static void configure(long n, int k, Wheel wheel, int blockSize, boolean intervalFactoring, boolean rhoFactoring) {
+        Primes.n = n;
+        Primes.k = k;
+        Primes.wheel = wheel;
+        Primes.blockSize = blockSize;
+        Primes.intervalFactoring = intervalFactoring;
+        Primes.rhoFactoring = rhoFactoring;
+    }
+
+    /**
+     * Constructor that does not run anything, to call the phases one by one after configure().
+     */
+    Primes() {
+    }
+
     /**
      * Constructor for the class.
      * @param run The run number, used to store timings.
      */
     private Primes(int run) {
         long startTime;
-        int cells = (int)(n / 16 + 1);
+        long bits = wheel.bits(n); // One bit per number on the wheel, 16 numbers per byte if we only skip even nums.
 
-        // Do sequential tests
+        // Do sequential tests, allocating outside the timed region.
         System.out.println("Starting sequential");
+        SieveStorage seqArray = new SieveStorage(bits);
+        @SuppressWarnings("unchecked")
+        ArrayList<UInt128>[] seqFactors = (ArrayList<UInt128>[])new ArrayList<?>[100];
+        for (int i = 0; i < 100; i++) seqFactors[i] = new ArrayList<UInt128>(24);
         startTime = System.nanoTime();
-        byte[] seqArray = new byte[cells];
-        ArrayList<Long>[] seqFactors = new ArrayList[100];
-        for (int i = 0; i < 100; i++) seqFactors[i] = new ArrayList<Long>(24);
         seq(seqArray, seqFactors);
         seqTiming[run] = (System.nanoTime() - startTime) / 1000000.0;
         System.out.println("Sequential time: " + seqTiming[run] + "ms.");
@@ -78,46 +267,51 @@ public class Primes {
 
         // Do parallel tests
         System.out.println("Starting Parallel");
+        SieveStorage parArray = new SieveStorage(bits);
+        @SuppressWarnings("unchecked")
+        ArrayList<UInt128>[] parFactors = (ArrayList<UInt128>[])new ArrayList<?>[100];
+        for (int i = 0; i < 100; i++) parFactors[i] = new ArrayList<UInt128>(24);
         startTime = System.nanoTime();
-        byte[] parArray = new byte[cells];
-        ArrayList<Long>[] parFactors = new ArrayList[100];
-        for (int i = 0; i < 100; i++) parFactors[i] = new ArrayList<Long>(24);
         par(parArray, parFactors);
         parTiming[run] = (System.nanoTime() - startTime) / 1000000.0;
         System.out.println("Parallel time: " + parTiming[run] + "ms.");
 
         // Print parallel factoring results.
-        FactorPrintOut fpo = new FactorPrintOut("krishto", (int)n);
+        FactorPrintOut fpo = new FactorPrintOut("krishto", n);
         for (int i = 0; i < parFactors.length; i++) {
-            Long[] arr = parFactors[i].toArray(new Long[parFactors[i].size()]);
+            UInt128[] arr = parFactors[i].toArray(new UInt128[parFactors[i].size()]);
             Arrays.sort(arr);
-            for (long j : arr) {
-                fpo.addFactor((n * n) - 1 - i, j);
+            for (UInt128 j : arr) {
+                fpo.addFactor(number(i), j);
             }
         }
+        long phase = Metrics.start();
         fpo.writeFactors();
-
-        // Check if it is correct.
-        for (int i = 0; i < seqArray.length; i++) { // Primes
-            if (seqArray[i] != parArray[i]) {
-                System.out.printf(
-                        "[PRIMES] Mismatch at index %d\n\t%s and %s.\n",
-                        i, bitString(seqArray[i]), bitString(parArray[i])
-                );
+        Metrics.stop("write", phase);
+
+        // Check if it is correct, only looking closer at the words that differ.
+        for (long w = seqArray.mismatch(parArray, 0); w >= 0; w = seqArray.mismatch(parArray, w + 1)) {
+            for (long i = w * 8; i < (w + 1) * 8 && i < seqArray.bytes(); i++) {
+                if (seqArray.getByte(i) != parArray.getByte(i)) {
+                    System.out.printf(
+                            "[PRIMES] Mismatch at index %d\n\t%s and %s.\n",
+                            i, bitString(seqArray.getByte(i)), bitString(parArray.getByte(i))
+                    );
+                }
             }
         }
 
         // Check if factors match.
         for (int i = 0; i < seqFactors.length; i++) {
-            Long[] parArr = parFactors[i].toArray(new Long[parFactors[i].size()]);
+            UInt128[] parArr = parFactors[i].toArray(new UInt128[parFactors[i].size()]);
             Arrays.sort(parArr);
-            Long[] seqArr = seqFactors[i].toArray(new Long[seqFactors[i].size()]);
+            UInt128[] seqArr = seqFactors[i].toArray(new UInt128[seqFactors[i].size()]);
             Arrays.sort(seqArr);
 
             for (int j = 0; j < seqArr.length; j++) {
                if (!parArr[j].equals(seqArr[j])) {
                    System.out.printf(
-                           "[FACTORS] Mismatch at index %d-%d\n\ts:%d and p:%d.\n",
+                           "[FACTORS] Mismatch at index %d-%d\n\ts:%s and p:%s.\n",
                            i, j, seqArr[j], parArr[j]
                    );
                }
@@ -127,91 +321,389 @@ public class Primes {
 
     /**
      * Do the algorithm sequentially.
-     * @param array The byte array to work with.
+     * @param array The sieve storage to work with.
      */
-    private void seq(byte[] array, ArrayList<Long>[] factors) {
-        long currentPrime = 3; // 2 is marked by default, because we skip even nums.
-
-        while (currentPrime*currentPrime <= n) {
-            //System.out.println("Prime found: " + currentPrime);
+    private void seq(SieveStorage array, ArrayList<UInt128>[] factors) {
+        // Never from the cache, so the parallel sieve, which does use it, is checked against one done from scratch.
+        long phase = Metrics.start();
+        sieveAll(array, false);
+        Metrics.stop("seq.sieve", phase);
+
+        // Extract the primes once, instead of searching the sieve for every divisor.
+        phase = Metrics.start();
+        PrimeTable table = PrimeTable.build(array, wheel, n, 1);
+        Metrics.stop("seq.table", phase);
+
+        phase = Metrics.start();
+        factor(table, factors);
+        Metrics.stop("seq.factor", phase);
+    }
 
-            flipInRange(array, currentPrime, currentPrime*currentPrime, n);
-            try {
-                currentPrime = findNextPrime(array, currentPrime + 2);
-            } catch (NoMorePrimesException e) {
-                break;
-            }
+    /**
+     * Factorize the 100 numbers sequentially.
+     * @param table The primes below n.
+     * @param factors The lists to add the factors of each number to.
+     */
+    private void factor(PrimeTable table, ArrayList<UInt128>[] factors) {
+        if (intervalFactoring) {
+            IntervalFactorizer interval = new IntervalFactorizer(number(0), 100, table, 1, rhoFactoring);
+            interval.sieve(0);
+            interval.collect(factors);
+            return;
         }
 
         // Factorize
-        long num;
-        long remain;
+        UInt128 num;
+        UInt128 remain;
         for (int i = 0; i < 100; i++) {
-            num = (n * n) - 1 - i;
+            num = number(i);
             remain = num;
 
             // 2 is an egde case
-            while (remain % 2 == 0) {
-                factors[i].add(2L);
-                remain = remain / 2;
+            while (remain.isEven()) {
+                factors[i].add(UInt128.of(2));
+                remain = remain.divide(2);
+            }
+
+            if (rhoFactoring) {
+                // Trial divide up to the cube root only, what is left has at most two prime factors.
+                long limit = PollardRho.trialLimit(remain);
+                int t = 0; // Index of j in the table.
+                long j = 1;
+                for (; t < table.size() && !remain.isOne(); t++) {
+                    j += table.gap(t);
+                    if (j > limit) {
+                        break;
+                    }
+                    while (remain.remainder(j) == 0) {
+                        factors[i].add(UInt128.of(j));
+                        remain = remain.divide(j);
+                    }
+                }
+                PollardRho.finish(remain, table, t, factors[i]);
+                continue;
             }
 
             // General
-            long j = 3;
-            while ((j * j) < num && remain != 1) {
-                if (remain % j == 0) {
-                    factors[i].add(j);
-                    remain = remain / j;
+            if (table.size() == 0) {
+                if (!remain.isOne()) {
+                    factors[i].add(remain);
+                }
+                continue;
+            }
+            long jLimit = num.subtract(1).sqrt(); // j * j < num, without overflowing j * j.
+            int t = 0; // Index of j in the table.
+            long j = 1 + table.gap(0);
+            while (j <= jLimit && !remain.isOne()) {
+                if (remain.remainder(j) == 0) {
+                    factors[i].add(UInt128.of(j));
+                    remain = remain.divide(j);
+                } else if (++t < table.size()) {
+                    j += table.gap(t);
                 } else {
-                    try {
-                        j = findNextPrime(array, j + 2);
-                    } catch (NoMorePrimesException e) {
-                        if (remain != 1) {
-                            factors[i].add(remain);
-                        }
-                        break;
+                    if (!remain.isOne()) {
+                        factors[i].add(remain);
                     }
+                    break;
                 }
             }
         }
     }
 
     /**
-     * Do the algorithm in parallel.
-     * @param array The byte array to work with.
+     * Sieve the whole range sequentially, starting from the sieve cache if there is one.
+     * @param array The sieve storage to work with.
      */
-    private void par(byte[] array, ArrayList<Long>[] factors) {
-        // Sequential start.
-        long currentPrime = 3; // 2 is marked by default, because we skip even nums.
+    private void sieveAll(SieveStorage array) {
+        sieveAll(array, true);
+    }
 
-        int sqrtN = (int)Math.sqrt(n);
+    /**
+     * Sieve the whole range sequentially.
+     * @param array The sieve storage to work with.
+     * @param useCache True to start from the sieve cache and save it back, false to leave the cache alone.
+     */
+    private void sieveAll(SieveStorage array, boolean useCache) {
+        long sqrtN = sqrt(n);
+
+        // Find the sieving primes first, then do the rest of the range block by block, skipping what the cache had.
+        long cached = useCache ? loadCache(array) : 0;
+        long[] sievingPrimes = sieveBase(array, sqrtN);
+        new SegmentedSieve(array, wheel, sievingPrimes, blockSize).sieve(Math.max(sqrtN + 1, cached), n);
+        if (useCache) {
+            saveCache(array, cached);
+        }
+    }
 
-        // Find all primes in the square root of n, using only the square root of those numbers to generate it..
-        while (currentPrime*currentPrime <= sqrtN) {
-            //System.out.println("Prime found: " + currentPrime);
+    /**
+     * Factorize a batch of numbers instead of the 100 below n*n, with one sieve up to n for all of them.
+     * The factors are written to batch_n.txt.
+     * @param path The file to read the numbers from, or - for standard in.
+     */
+    private static void batch(String path) {
+        long[] numbers;
+        try (InputStream in = path.equals("-") ? System.in : new FileInputStream(path)) {
+            numbers = BatchFactorizer.read(in);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not read the numbers to factorize: " + e.getMessage());
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        SieveStorage array = new SieveStorage(wheel.bits(n));
+        new Primes().sieveAll(array);
+        PrimeTable table = PrimeTable.build(array, wheel, n, k);
+        double sieveTime = (System.nanoTime() - startTime) / 1000000.0;
+
+        startTime = System.nanoTime();
+        FactorPrintOut fpo = new FactorPrintOut("batch", n);
+        new BatchFactorizer(table, k).factor(numbers, fpo);
+        double factorTime = (System.nanoTime() - startTime) / 1000000.0;
+        fpo.writeFactors();
+
+        System.out.printf("Sieve and table     : %.3f ms, %d primes below %d\n", sieveTime, table.size() + 1, n);
+        System.out.printf("Factorized %d numbers in %.3f ms, %.0f numbers/sec\n",
+                numbers.length, factorTime, numbers.length / (factorTime / 1000.0));
+    }
+
+    /**
+     * Sieve below n and build the table once, then answer factorization requests until the process is stopped.
+     * @param port The port to listen on, 0 for any free port.
+     */
+    private static void serve(int port) {
+        long startTime = System.nanoTime();
+        SieveStorage array = new SieveStorage(wheel.bits(n));
+        new Primes().sieveAll(array);
+        PrimeTable table = PrimeTable.build(array, wheel, n, k);
+        double sieveTime = (System.nanoTime() - startTime) / 1000000.0;
+        System.out.printf("Sieve and table     : %.3f ms, %d primes below %d\n", sieveTime, table.size() + 1, n);
+
+        try {
+            new FactorService(table, k).serve(port);
+        } catch (IOException e) {
+            System.out.println("Could not listen on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Count the primes below n without sieving up to n. For small n, the count is checked against the sieve.
+     */
+    private static void count() {
+        long startTime = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(k);
+        long count = PrimeCounter.count(n - 1, pool);
+        pool.shutdown();
+        double countTime = (System.nanoTime() - startTime) / 1000000.0;
+        System.out.printf("Primes below %d: %d (%.3f ms)\n", n, count, countTime);
+
+        if (n <= COUNT_CHECK_LIMIT) {
+            startTime = System.nanoTime();
+            SieveStorage array = new SieveStorage(wheel.bits(n));
+            new Primes().sieveAll(array);
+            long sieved = SieveIndex.build(array, wheel, n, k).count();
+            double sieveTime = (System.nanoTime() - startTime) / 1000000.0;
+            System.out.printf("Sieve popcount : %d (%.3f ms), %s\n", sieved, sieveTime, sieved == count ? "matches" : "MISMATCH");
+        }
+    }
+
+    /**
+     * Sieve below n and write the primes to a PrimeFile, then stream them back to check the file.
+     * @param path The file to write.
+     */
+    private static void export(Path path) {
+        SieveStorage array = new SieveStorage(wheel.bits(n));
+        new Primes().sieveAll(array);
+
+        long startTime = System.nanoTime();
+        try {
+            PrimeFile.write(array, wheel, n, path, k);
+        } catch (IOException e) {
+            System.out.println("Could not write " + path + ": " + e.getMessage());
+            return;
+        }
+        double writeTime = (System.nanoTime() - startTime) / 1000000.0;
+
+        startTime = System.nanoTime();
+        long read = 0, last = 0;
+        boolean sorted = true;
+        try (PrimeFile.Reader reader = new PrimeFile.Reader(path)) {
+            while (reader.hasNext()) {
+                long prime = reader.nextLong();
+                sorted &= prime > last;
+                last = prime;
+                read++;
+            }
+        } catch (IOException | IllegalStateException e) {
+            System.out.println("Could not read " + path + " back: " + e.getMessage());
+            return;
+        }
+        double readTime = (System.nanoTime() - startTime) / 1000000.0;
+
+        long expected = SieveIndex.build(array, wheel, n, k).count();
+        try {
+            System.out.printf("Wrote %d primes in %d bytes (%.3f ms), the sieve is %d bytes\n", expected, Files.size(path), writeTime, array.bytes());
+        } catch (IOException e) {
+            System.out.println("Could not read the size of " + path + ": " + e.getMessage());
+        }
+        System.out.printf("Read back %d primes (%.3f ms), %s\n", read, readTime, read == expected && sorted ? "matches" : "MISMATCH");
+    }
+
+    /**
+     * Count the primes below n with worker processes: the base is sieved here, and the rest by the Coordinator's
+     * workers, which split the threads between them. The sum is checked against PrimeCounter.
+     * @param processes The number of worker processes.
+     * @param rangeFiles The directory the workers write the bits of their ranges to, or null.
+     */
+    private static void distribute(int processes, Path rangeFiles) {
+        long startTime = System.nanoTime();
+        long sqrtN = sqrt(n);
+        SieveStorage base = new SieveStorage(wheel.bits(sqrtN + 1));
+        long[] sievingPrimes = new Primes().sieveBase(base, sqrtN);
+        long count = sievingPrimes.length;
+        for (long p : wheel.wheelPrimes) {
+            if (p < n) count++;
+        }
+
+        Coordinator.Result[] results;
+        try {
+            if (rangeFiles != null) {
+                Files.createDirectories(rangeFiles);
+            }
+            results = Coordinator.run(base, wheel, n, sqrtN, processes, Math.max(k / processes, 1), blockSize, rangeFiles);
+        } catch (IOException e) {
+            System.out.println("The workers failed: " + e.getMessage());
+            return;
+        }
+        for (Coordinator.Result result : results) {
+            System.out.printf("Worker %d: %d primes in [%d, %d) (%.3f ms)\n",
+                    result.id, result.count, result.from, result.to, result.nanos / 1000000.0);
+            count += result.count;
+        }
+        double time = (System.nanoTime() - startTime) / 1000000.0;
+        System.out.printf("Primes below %d: %d (%.3f ms, %d processes)\n", n, count, time, processes);
+
+        ForkJoinPool pool = new ForkJoinPool(k);
+        long expected = PrimeCounter.count(n - 1, pool);
+        pool.shutdown();
+        System.out.printf("Lucy_Hedgehog count: %d, %s\n", expected, expected == count ? "matches" : "MISMATCH");
+    }
+
+    /**
+     * Find the primes below n and factorize the 100 numbers without a sieve of the whole range, for when it does not
+     * fit in memory. The threads take chunks of the range from a shared counter, stream the primes in each chunk from
+     * a PrimeIterator, and trial divide all the numbers by every prime that goes by. That is the same work as the
+     * trial division of a full run, so --factor and --rho do not apply. The factors are written like in a full run.
+     */
+    private static void stream() {
+        long startTime = System.nanoTime();
+        long chunk = Math.max((n + k * 16L - 1) / (k * 16L), 1 << 20); // Numbers per chunk.
+        long chunks = (n + chunk - 1) / chunk;
+        AtomicLong next = new AtomicLong();
+        AtomicLong primeCount = new AtomicLong();
+
+        UInt128[] numbers = new UInt128[100];
+        @SuppressWarnings("unchecked")
+        ArrayList<UInt128>[] factors = (ArrayList<UInt128>[])new ArrayList<?>[100];
+        for (int i = 0; i < 100; i++) {
+            numbers[i] = number(i);
+            factors[i] = new ArrayList<UInt128>(24);
+        }
 
-            flipInRange(array, currentPrime, currentPrime*currentPrime, sqrtN);
+        Thread[] threads = new Thread[k];
+        for (int t = 0; t < k; t++) {
+            threads[t] = new Thread(() -> {
+                for (long c = next.getAndIncrement(); c < chunks; c = next.getAndIncrement()) {
+                    PrimeIterator primes = new PrimeIterator(c * chunk, Math.min((c + 1) * chunk, n), wheel);
+                    long count = 0;
+                    while (primes.hasNext()) {
+                        long prime = primes.nextLong();
+                        count++;
+                        for (int i = 0; i < 100; i++) {
+                            if (numbers[i].remainder(prime) != 0) {
+                                continue;
+                            }
+                            synchronized (factors[i]) {
+                                for (UInt128 remain = numbers[i]; remain.remainder(prime) == 0; remain = remain.divide(prime)) {
+                                    factors[i].add(UInt128.of(prime));
+                                }
+                            }
+                        }
+                    }
+                    primeCount.addAndGet(count);
+                }
+            }, "stream-" + t);
+            threads[t].start();
+        }
+
+        for (Thread thread : threads) {
             try {
-                currentPrime = findNextPrime(array, currentPrime + 2);
-            } catch (NoMorePrimesException e) {
-                break;
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // What is left has no prime factor below n, and n is above its square root, so it is a prime.
+        for (int i = 0; i < 100; i++) {
+            UInt128 remain = numbers[i];
+            for (UInt128 factor : factors[i]) {
+                remain = remain.divide(factor.longValue());
+            }
+            if (!remain.isOne()) {
+                factors[i].add(remain);
             }
         }
+        double streamTime = (System.nanoTime() - startTime) / 1000000.0;
+        System.out.printf("Streaming time: %.3fms. Primes below %d: %d\n", streamTime, n, primeCount.get());
+
+        FactorPrintOut fpo = new FactorPrintOut("krishto", n);
+        for (int i = 0; i < 100; i++) {
+            UInt128[] arr = factors[i].toArray(new UInt128[factors[i].size()]);
+            Arrays.sort(arr);
+            for (UInt128 j : arr) {
+                fpo.addFactor(number(i), j);
+            }
+        }
+        fpo.writeFactors();
+    }
+
+    /**
+     * Do the algorithm in parallel.
+     * @param array The sieve storage to work with.
+     */
+    private void par(SieveStorage array, ArrayList<UInt128>[] factors) {
+        // Sequential start.
+        long sqrtN = sqrt(n);
+
+        // Find all primes in the square root of n, using only the square root of those numbers to generate it.
+        long phase = Metrics.start();
+        long cached = loadCache(array);
+        long[] sievingPrimes = sieveBase(array, sqrtN);
+        Metrics.stop("par.base", phase);
 
         // Threads doing more flipping work.
         CyclicBarrier cb = new CyclicBarrier(k); // Main will not use it.
-        Lock lock = new ReentrantLock();
 
         Thread[] threads = new Thread[k];
-        int segmentSize = (int)((n - sqrtN) / 16) / k; // (Number of bits to check / nums per byte) / threads
-        // Will need to multiply by 16 before sending as argument, since arguments take bits as input, not byte.
+        // The sieving is handed out in small segments, so threads that finish early take more of them.
+        SegmentQueue segments = new SegmentQueue(wheel, Math.max(sqrtN + 1, cached), n, (long)blockSize * 8 * SEGMENT_BLOCKS, k);
+
+        // The prime table is extracted by the workers too, each from its own part. Parts start on a word boundary,
+        // so no two threads ever write to the same word. Worker 0 also takes the base.
+        long alignedStart = (wheel.bits(sqrtN + 1) + 63) / 64; // In words.
+        long segmentSize = Math.max(wheel.bits(n) / 64 - alignedStart, 0) / k; // Words per thread.
+        long[] bounds = new long[k + 1];
+        bounds[0] = wheel.bits(wheel.firstSievingPrime());
+        bounds[k] = wheel.bits(n);
+        for (int i = 1; i < k; i++) {
+            bounds[i] = Math.max(Math.min((alignedStart + i * segmentSize) * 64, bounds[k]), bounds[0]);
+        }
+        PrimeTable table = new PrimeTable(array, wheel, bounds);
+        IntervalFactorizer interval = intervalFactoring ? new IntervalFactorizer(number(0), 100, table, k, rhoFactoring) : null;
 
+        phase = Metrics.start();
         for (int i = 0; i < k; i++) {
-            int start = sqrtN + ((i * segmentSize) * 16);
-            int stop = start + (segmentSize * 16);
-            stop = (i == (k - 1)) ? (int)n : stop;
-
-            threads[i] = new Thread(new Worker(i, array, start, stop, factors, cb, lock));
+            threads[i] = new Thread(new Worker(i, array, sievingPrimes, table, interval, segments, factors, cb), "worker-" + i);
             threads[i].start();
         }
 
@@ -222,245 +714,290 @@ public class Primes {
                 //e.printStackTrace();
             }
         }
+        Metrics.stop("par.workers", phase);
+        saveCache(array, cached);
+
+        if (!intervalFactoring) {
+            // Factorize, every number is its own task, and hard numbers are split further.
+            phase = Metrics.start();
+            ForkJoinPool pool = new ForkJoinPool(k);
+            FactorTask.factorAll(number(0), 100, table, factors, pool, rhoFactoring);
+            pool.shutdown();
+            Metrics.stop("par.factor", phase);
+        }
     }
 
     /**
      * Worker class for parallel solution.
      */
     private class Worker implements Runnable {
-        byte[] array;
-        int id, start, stop;
-
-        ArrayList<Long>[] factors;
+        SieveStorage array;
+        long[] sievingPrimes;
+        PrimeTable table;
+        IntervalFactorizer interval;
+        SegmentQueue segments;
+        int id;
+
+        ArrayList<UInt128>[] factors;
         CyclicBarrier cb;
-        Lock lock;
 
-        Worker(int id, byte[] array, int start, int stop, ArrayList<Long>[] factors, CyclicBarrier cb, Lock lock) {
+        Worker(int id, SieveStorage array, long[] sievingPrimes, PrimeTable table, IntervalFactorizer interval, SegmentQueue segments, ArrayList<UInt128>[] factors, CyclicBarrier cb) {
             this.id = id;
 
             this.array = array;
-            this.start = start;
-            this.stop = stop;
+            this.sievingPrimes = sievingPrimes;
+            this.table = table;
+            this.interval = interval;
+            this.segments = segments;
 
             this.factors = factors;
             this.cb = cb;
-            this.lock = lock;
         }
 
         @Override
         public void run() {
-            // Find primes.
-            long currentPrime = 3;
-
-            while (currentPrime*currentPrime <= n && currentPrime*currentPrime <= stop) {
-                flipInRange(
-                        array,
-                        currentPrime,
-                        currentPrime*currentPrime > start ? currentPrime*currentPrime : start, // Highest one
-                        stop
-                );
-                try {
-                    currentPrime = findNextPrime(array, currentPrime + 2);
-                } catch (NoMorePrimesException e) {
-                    break;
+            // Find primes, one segment at a time until there are none left.
+            SegmentedSieve sieve = new SegmentedSieve(array, wheel, sievingPrimes, blockSize);
+            for (long segment = segments.take(id); segment >= 0; segment = segments.take(id)) {
+                sieve.sieve(segments.start(segment), segments.stop(segment));
+                if (Metrics.enabled) {
+                    Metrics.counters().segments++;
                 }
             }
 
             // Wait for all to finish.
+            await();
+
+            // Extract the primes in our segment into the shared table.
+            table.count(id);
+            await();
+            if (id == 0) table.allocate();
+            await();
+            table.fill(id);
+            await();
+            if (id == 0) table.link();
+            await();
+
+            if (interval != null) {
+                // Every worker sieves the 100 numbers with its own part of the table, then one merges the results.
+                interval.sieve(id);
+                await();
+                if (id == 0) interval.collect(factors);
+            }
+        }
+
+        /**
+         * Wait for all the other workers at the barrier.
+         */
+        private void await() {
+            long start = Metrics.start();
             try {
                 cb.await();
             } catch (InterruptedException | BrokenBarrierException e) {
                 e.printStackTrace();
             }
+            if (Metrics.enabled) {
+                Metrics.counters().barrierNanos += System.nanoTime() - start;
+            }
+        }
+    }
 
-            // Factorize.
-            long num;
-            long localRemain;
-            for (int i = 0; i < 100; i++) {
-                num = ((n * n) - 1 - i);
-                if (id == 0) {
-                    globalRemain = num;
-                }
-                try {
-                    cb.await();
-                } catch (InterruptedException | BrokenBarrierException e) {
-                    e.printStackTrace();
-                }
-
-                // Safe because we're between two barriers where nobody writes.
-                localRemain = globalRemain;
-
-                try {
-                    cb.await();
-                } catch (InterruptedException | BrokenBarrierException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Sieve the numbers up to and including sqrtN, and collect the primes found there.
+     * These are all the primes needed to sieve the rest of the range up to n.
+     * @param array The sieve storage to work with.
+     * @param sqrtN The square root of n, rounded down.
+     * @return The primes up to and including sqrtN that are not part of the wheel, sorted ascending.
+     */
+    long[] sieveBase(SieveStorage array, long sqrtN) {
+        long first = wheel.firstSievingPrime(); // The primes in the wheel are marked by default, since we skip them.
+
+        // The smallest primes are copied in as a pattern, and the flipping goes on from the next prime after them.
+        PreSieve presieve = PreSieve.of(wheel);
+        presieve.fill(array, 0, wheel.bits(sqrtN + 1), 0);
+        long currentPrime;
+        try {
+            currentPrime = findNextPrime(array, presieve.largest + 2);
+        } catch (NoMorePrimesException e) {
+            currentPrime = sqrtN + 1;
+        }
 
-                // 2 is still an edge case
-                if (id == 0) {
-                    if (localRemain % 2 == 0) {
-                        lock.lock();
-                        try {
-                            while (localRemain % 2 == 0) {
-                                factors[i].add(2L);
-                                globalRemain = globalRemain / 2;
-                                localRemain = globalRemain;
-                            }
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
-                }
+        while (currentPrime*currentPrime <= sqrtN) {
+            flipInRange(array, currentPrime, currentPrime*currentPrime, sqrtN + 1);
+            try {
+                currentPrime = findNextPrime(array, currentPrime + 2);
+            } catch (NoMorePrimesException e) {
+                break;
+            }
+        }
 
-                // General case
-                long j = 3;
-                boolean run = true; // If no primes for this thread and this number, don't run.
-                for (int l = 0; l < id; l++) { // "Push" the starting point for each thread to an appropriate value.
-                    try {
-                        j = findNextPrime(array, j + 2);
-                    } catch (NoMorePrimesException e) {
-                        run = false;
-                    }
-                }
-                while ((j * j) < num && localRemain != 1 && run) {
-                    if (localRemain != globalRemain) {
-                        lock.lock();
-                        try {
-                            localRemain = globalRemain;
-                        } finally {
-                            lock.unlock();
-                        }
-                    }
+        ArrayList<Long> found = new ArrayList<>();
+        for (long i = first; i <= sqrtN && i < n; i = wheel.nextCandidate(i + 2)) {
+            if (isPrime(array, i)) {
+                found.add(i);
+            }
+        }
 
-                    if (localRemain % j == 0) {
-                        lock.lock();
-                        try {
-                            factors[i].add(j);
-                            globalRemain = globalRemain / j;
-                            localRemain = globalRemain;
-                        } finally {
-                            lock.unlock();
-                        }
-                    } else {
-                        try {
-                            // Skip until the next number this thread should process.
-                            for (int l = 0; l < (k - 1); l++) {
-                                j = findNextPrime(array, j + 2);
-                            }
-                            j = findNextPrime(array, j + 2);
-                        } catch (NoMorePrimesException e) {
-                            break;
-                        }
+        long[] primes = new long[found.size()];
+        for (int i = 0; i < primes.length; i++) {
+            primes[i] = found.get(i);
+        }
+        return primes;
+    }
 
-                    }
-                }
+    /**
+     * Fill the storage from the sieve cache, if there is one.
+     * @param array The sieve storage to fill.
+     * @return The number the storage is sieved up to now, 0 if nothing was loaded.
+     */
+    private long loadCache(SieveStorage array) {
+        if (cache == null) {
+            return 0;
+        }
+        try {
+            return cache.load(array, n);
+        } catch (IOException e) {
+            System.out.println("Ignoring the sieve cache: " + e.getMessage());
+            return 0;
+        }
+    }
 
-                // Wait for all to finish
-                try {
-                    cb.await();
-                } catch (InterruptedException | BrokenBarrierException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Save the sieve to the cache, unless the cache already covered all of it. If that fails the cache is dropped, so
+     * the runs after this one do not try and report it again. A cache that failed to load is still saved over here,
+     * which is what repairs a corrupt one.
+     * @param array The finished sieve storage.
+     * @param cached What loadCache() returned for it.
+     */
+    private void saveCache(SieveStorage array, long cached) {
+        if (cache == null || cached >= n) {
+            return;
+        }
+        try {
+            cache.save(array, n);
+        } catch (IOException e) {
+            System.out.println("Could not save the sieve cache, not using it any more: " + e.getMessage());
+            cache = null;
+        }
+    }
 
-                // Add last factor if there is one more.
-                // Because only 1 thread does this and it's between two barriers, this is safe.
-                if (globalRemain != 1 && id == 0) {
-                    factors[i].add(globalRemain);
-                }
+    /**
+     * The numbers to factorize are n*n - 1 - i, which do not fit in a long for n above about 3 * 10^9.
+     * @param i Which number, 0 to 99.
+     * @return n*n - 1 - i.
+     */
+    static UInt128 number(int i) {
+        return UInt128.multiply(n, n).subtract(1 + i);
+    }
 
-                // Wait before starting to process the next num.
-                try {
-                    cb.await();
-                } catch (InterruptedException | BrokenBarrierException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Integer square root, rounded down.
+     * @param x The number to find the square root of.
+     * @return The largest number r such that r*r <= x.
+     */
+    static long sqrt(long x) {
+        long r = (long)Math.sqrt(x);
+        while (r * r > x) r--;
+        while ((r + 1) * (r + 1) <= x) r++;
+        return r;
     }
 
     /**
      * Assuming prime is a prime, flips all numbers divisible by prime between start and stop.
      * Start and stop values should reflect the assumptions.
-     * @param array The bit array to work with.
+     * Only multiples that are on the wheel are flipped, the others are not stored.
+     * @param array The sieve storage to work with.
      * @param prime The prime to process.
      * @param start Start point, inclusive.
      * @param stop Stop point, exclusive.
      */
-    private void flipInRange(byte[] array, long prime, long start, long stop) {
+    void flipInRange(SieveStorage array, long prime, long start, long stop) {
         //System.out.println("flipinrange(" + prime + ", " + start + " to " + stop + ")");
-        if ((prime & 1) == 0) {
-            throw new IllegalArgumentException("Can not have an even prime.");
+        if (!wheel.isCandidate(prime)) {
+            throw new IllegalArgumentException("Can not have a prime that is part of the wheel.");
         }
 
-        long rest = start % prime;
-        if (rest != 0) {
-            start = start + prime - rest;
-        }
-        if ((start & 1) == 0) {
-            start = start + prime;
-        }
+        long m = wheel.firstMultiplier(prime, start);
+        int position = wheel.indexOf(m);
 
-        for (long i = start; i < stop; i += prime*2) {
+        long flips = 0;
+        for (long i = prime * m; i < stop; i += prime * wheel.gaps[position], position = (position + 1) % wheel.size) {
             flipBit(array, i);
+            flips++;
+        }
+        if (Metrics.enabled) {
+            Metrics.counters().flipped += flips;
         }
     }
 
     /**
      * Flip the bit representing i in the array. Basically the same as the demo code.
-     * @param array The array storing all the bytes.
+     * @param array The sieve storage.
      * @param i The number, flips the bit representing this number.
-     * @throws IllegalArgumentException If i is not an odd number.
+     * @throws IllegalArgumentException If i is not on the wheel, for example an even number.
      */
-    private void flipBit(byte[] array, long i) throws IllegalArgumentException {
-        if ((i & 1) == 0) {
-            throw new IllegalArgumentException("Can not flip an even bit.");
+    private void flipBit(SieveStorage array, long i) throws IllegalArgumentException {
+        if (!wheel.isCandidate(i)) {
+            throw new IllegalArgumentException("Can not flip a bit that is not on the wheel.");
         }
 
-        int cell = (int)(i / 16);
-        int bit = (int)((i/2) % 8);
-
         //System.out.println("Flipped " + i);
 
-        array[cell] |= (1 << bit);
+        array.set(wheel.bitOf(i)); // With only odd numbers, bit i/2 lives in byte i/16, at position (i/2) % 8.
     }
 
     /**
      * Check if the number is a prime by checking if its bit has been flipped.
-     * @param array The array to work with.
+     * @param array The sieve storage to work with.
      * @param i The number to check.
      * @return True if it is a prime number, false otherwise.
      * @throws IllegalArgumentException If i is not an odd number.
      */
-    private boolean isPrime(byte[] array, long i) throws IllegalArgumentException {
+    private boolean isPrime(SieveStorage array, long i) throws IllegalArgumentException {
         if ((i & 1) == 0) {
             throw new IllegalArgumentException("Can not check an even bit.");
         }
 
-        int cell = (int)(i / 16);
-        int bit = (int)((i/2) % 8);
+        if (!wheel.isCandidate(i)) {
+            // Not stored, so it is either one of the primes in the wheel or divisible by one of them.
+            for (long p : wheel.wheelPrimes) {
+                if (p == i) return true;
+            }
+            return false;
+        }
 
-        return (array[cell] & (1 << bit)) == 0;
+        return !array.get(wheel.bitOf(i));
     }
 
     /**
      * Find the next prime after, and including, startAt.
-     * @param array The byte array to use in the search.
+     * @param array The sieve storage to use in the search.
      * @param startAt The number to start at.
      * @return The next prime number below n.
      * @throws IllegalArgumentException If startAt is not an odd number.
      * @throws NoMorePrimesException If there are no more primes from startAt to n.
      */
-    private long findNextPrime(byte[] array, long startAt) throws IllegalArgumentException, NoMorePrimesException {
+    long findNextPrime(SieveStorage array, long startAt) throws IllegalArgumentException, NoMorePrimesException {
         if ((startAt & 1) == 0) {
             throw new IllegalArgumentException("startAt can not be an even number.");
         }
+        if (Metrics.enabled) {
+            Metrics.counters().probes++;
+        }
 
-        for (long i = startAt; i < n; i +=2) { // Check only the odd numbers.
-            if (isPrime(array, i)) {
-                return i;
+        // The primes in the wheel are not stored, check them first.
+        for (long p : wheel.wheelPrimes) {
+            if (p >= startAt && p < n) {
+                return p;
             }
         }
 
+        // Then check only the numbers on the wheel, a whole word of them at a time.
+        long bit = array.nextClear(wheel.bits(startAt), wheel.bits(n));
+        if (bit != -1) {
+            return wheel.numberOf(bit);
+        }
+
         throw new NoMorePrimesException("No more primes.");
     }
 
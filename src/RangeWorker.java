@@ -0,0 +1,173 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Worker process for Coordinator: sieves one range of the numbers on its own, and reports back over a local socket.
+ *
+ * The base primes come from a PrimeFile the coordinator wrote, so no worker has to sieve them again. The range is
+ * sieved in windows of WINDOW_BITS, like PrimeIterator does, so the heap only has to hold one window per thread no
+ * matter how big the range is. The threads take windows from a shared counter. If an output file is given, each
+ * window is written to its place in it, and the file ends up holding the bits of the range in the same layout as
+ * SieveStorage, starting at the first bit of the range.
+ *
+ * The report is the worker id, the range, the number of primes in it and the time it took, as longs.
+ */
+public class RangeWorker {
+    private static final long WINDOW_BITS = 1L << 26; // 8 MiB windows.
+
+    /**
+     * Main.
+     * @param args --port=PORT --id=ID --from=FROM --to=TO --base=FILE --wheel=2|30|210 --block-size=BYTES
+     *             --threads=K, and optionally --out=FILE for the bits of the range. The range is [FROM, TO).
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 0, id = 0, blockSize = 32 * 1024, threads = 1;
+        long from = 0, to = 0;
+        Wheel wheel = Wheel.ODD;
+        Path base = null, out = null;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(value);
+            } else if (arg.startsWith("--id=")) {
+                id = Integer.parseInt(value);
+            } else if (arg.startsWith("--from=")) {
+                from = Long.parseLong(value);
+            } else if (arg.startsWith("--to=")) {
+                to = Long.parseLong(value);
+            } else if (arg.startsWith("--base=")) {
+                base = Paths.get(value);
+            } else if (arg.startsWith("--wheel=")) {
+                wheel = Wheel.of(Integer.parseInt(value));
+            } else if (arg.startsWith("--block-size=")) {
+                blockSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--out=")) {
+                out = Paths.get(value);
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (base == null || port == 0) {
+            throw new IllegalArgumentException("Need --base and --port.");
+        }
+
+        long startTime = System.nanoTime();
+        long[] primes = readBase(base, wheel);
+        long count = sieve(primes, wheel, from, to, blockSize, threads, out);
+        long time = System.nanoTime() - startTime;
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             DataOutputStream report = new DataOutputStream(socket.getOutputStream())) {
+            report.writeLong(id);
+            report.writeLong(from);
+            report.writeLong(to);
+            report.writeLong(count);
+            report.writeLong(time);
+        }
+    }
+
+    /**
+     * @param base The PrimeFile with the base primes.
+     * @param wheel The wheel the range is sieved with.
+     * @return The base primes that are not in the wheel, ascending.
+     * @throws IOException If the file can not be read.
+     */
+    private static long[] readBase(Path base, Wheel wheel) throws IOException {
+        try (PrimeFile.Reader reader = new PrimeFile.Reader(base)) {
+            long[] primes = new long[(int)reader.count()];
+            int count = 0;
+            reader.seek(wheel.firstSievingPrime());
+            while (reader.hasNext()) {
+                primes[count++] = reader.nextLong();
+            }
+            return Arrays.copyOf(primes, count);
+        }
+    }
+
+    /**
+     * Sieve the range window by window.
+     * @param primes The sieving primes.
+     * @param wheel The wheel to lay out the bits with.
+     * @param from The first number of the range, inclusive.
+     * @param to The last number of the range, exclusive.
+     * @param blockSize The size of each block within a window, in bytes.
+     * @param threads The number of threads.
+     * @param out The file to write the bits to, or null.
+     * @return The number of primes in the range.
+     * @throws IOException If the bits can not be written.
+     */
+    private static long sieve(long[] primes, Wheel wheel, long from, long to, int blockSize, int threads, Path out) throws IOException {
+        long firstBit = wheel.bits(from), endBit = Math.max(wheel.bits(to), firstBit);
+        long windows = (endBit - firstBit + WINDOW_BITS - 1) / WINDOW_BITS;
+        AtomicLong next = new AtomicLong();
+        AtomicLong count = new AtomicLong();
+
+        try (FileChannel channel = out == null ? null : FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            IOException[] failure = new IOException[1];
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(() -> {
+                    SieveStorage window = new SieveStorage(Math.min(WINDOW_BITS, (endBit - firstBit + 63) & -64L));
+                    SegmentedSieve sieve = new SegmentedSieve(window, wheel, primes, blockSize);
+                    ByteBuffer bytes = channel == null ? null : ByteBuffer.allocateDirect((int)(window.words() * 8)).order(ByteOrder.LITTLE_ENDIAN);
+
+                    for (long w = next.getAndIncrement(); w < windows; w = next.getAndIncrement()) {
+                        long low = firstBit + w * WINDOW_BITS, high = Math.min(low + WINDOW_BITS, endBit);
+                        window.clear();
+                        // The first window starts at from, which may not be the first number of its bit.
+                        sieve.sieve(Math.max(wheel.numberOf(low), from), wheel.numberOf(high), low);
+                        count.addAndGet(window.countClear(0, high - low));
+
+                        if (bytes != null) {
+                            int words = (int)((high - low + 63) >>> 6);
+                            bytes.clear().limit(words * 8);
+                            window.getWords(0, bytes.asLongBuffer());
+                            if (((high - low) & 63) != 0) {
+                                // Mark the bits after the range as not prime, the next range has the real ones.
+                                bytes.putLong((words - 1) * 8, bytes.getLong((words - 1) * 8) | -1L << (high - low));
+                            }
+                            try {
+                                long position = w * (WINDOW_BITS / 8);
+                                while (bytes.hasRemaining()) {
+                                    position += channel.write(bytes, position);
+                                }
+                            } catch (IOException e) {
+                                synchronized (failure) {
+                                    failure[0] = e;
+                                }
+                            }
+                        }
+                    }
+                });
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            synchronized (failure) {
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+        }
+        return count.get();
+    }
+}
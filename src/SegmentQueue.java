@@ -0,0 +1,123 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hands out the range to sieve as many small segments, one at a time.
+ *
+ * With one fixed slice per thread, the low slices take longer (more small primes hit them) and everybody waits at
+ * the barrier for the slowest thread. Here every thread starts out with its own stripe of consecutive segments and
+ * takes them from the front, so a SegmentedSieve sees each segment start where the last one stopped and carries its
+ * state over, instead of finding the first multiple of every prime again. A thread that runs out steals the back half
+ * of the stripe with the most segments left, and goes on through that from the front. So the work still evens out by
+ * itself, and the last thread is at most one segment behind the others.
+ *
+ * Every segment except the first starts on a word boundary, so no two threads ever write to the same word.
+ */
+public class SegmentQueue {
+    private final AtomicLongArray stripes; // Per thread, the first segment left in the high half, the end in the low half.
+    private final Wheel wheel;
+    private final long start, stop;
+    private final long alignedBit; // Bit where the second segment starts, minus one segment.
+    private final long segmentBits;
+    private final long segments;
+
+    /**
+     * Constructor.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param start Start point, inclusive.
+     * @param stop Stop point, exclusive.
+     * @param segmentBits The size of each segment in bits, rounded up to whole words.
+     * @param threads The number of threads that will take segments.
+     */
+    SegmentQueue(Wheel wheel, long start, long stop, long segmentBits, int threads) {
+        if (segmentBits <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive.");
+        }
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Need at least one thread.");
+        }
+
+        this.wheel = wheel;
+        this.start = start;
+        this.stop = stop;
+        this.alignedBit = (wheel.bits(start) + 63) / 64 * 64;
+        this.segmentBits = (segmentBits + 63) / 64 * 64;
+
+        long bits = Math.max(wheel.bits(stop) - alignedBit, 0);
+        this.segments = Math.max((bits + this.segmentBits - 1) / this.segmentBits, 1);
+        if (segments > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many segments, use bigger ones.");
+        }
+
+        stripes = new AtomicLongArray(threads);
+        for (int t = 0; t < threads; t++) {
+            stripes.set(t, pack(segments * t / threads, segments * (t + 1) / threads));
+        }
+    }
+
+    /**
+     * Take the next segment. Thread safe.
+     * @param thread The thread taking it, from 0 to the number of threads.
+     * @return The index of the segment, or -1 if all are taken.
+     */
+    long take(int thread) {
+        while (true) {
+            long stripe = stripes.get(thread);
+            int front = (int)(stripe >>> 32), end = (int)stripe;
+            if (front < end) {
+                if (stripes.compareAndSet(thread, stripe, pack(front + 1, end))) {
+                    return front;
+                }
+                continue; // Somebody stole from us meanwhile.
+            }
+
+            // Out of segments, steal from the stripe with the most left.
+            int victim = -1;
+            long most = 0;
+            for (int t = 0; t < stripes.length(); t++) {
+                long other = stripes.get(t);
+                long left = (int)other - (int)(other >>> 32);
+                if (left > most) {
+                    most = left;
+                    victim = t;
+                }
+            }
+            if (victim < 0) {
+                return -1;
+            }
+
+            long other = stripes.get(victim);
+            front = (int)(other >>> 32);
+            end = (int)other;
+            int middle = front + (end - front) / 2; // The victim keeps the front half, it is working its way up there.
+            if (front < end && stripes.compareAndSet(victim, other, pack(front, middle))) {
+                stripes.set(thread, pack(middle + 1, end)); // Only we write our own stripe while it is empty.
+                return middle;
+            }
+        }
+    }
+
+    /**
+     * @param front The first segment of a stripe.
+     * @param end The end of the stripe, exclusive.
+     * @return The stripe packed in a long.
+     */
+    private static long pack(long front, long end) {
+        return front << 32 | end;
+    }
+
+    /**
+     * @param segment Index of a segment.
+     * @return First number in the segment, inclusive.
+     */
+    long start(long segment) {
+        return segment == 0 ? start : wheel.numberOf(alignedBit + segment * segmentBits);
+    }
+
+    /**
+     * @param segment Index of a segment.
+     * @return Last number in the segment, exclusive.
+     */
+    long stop(long segment) {
+        return segment == segments - 1 ? stop : Math.min(wheel.numberOf(alignedBit + (segment + 1) * segmentBits), stop);
+    }
+}
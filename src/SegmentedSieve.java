@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+/**
+ * Segmented version of the sieve, working on the same wheel layout as Primes.
+ *
+ * Instead of letting every prime walk the entire range (which is far bigger than the cache), the range is
+ * processed one block at a time. Every sieving prime remembers the bit of the next multiple it has to flip, and
+ * where on the wheel that multiple is, so it can continue where it left off when the next block is processed.
+ * That state is also kept between calls, so sieving a range that starts where the last one stopped skips finding
+ * the first multiples again.
+ *
+ * Primes that only hit a block a few times, or not at all, are mostly wasted work to look at for every block. Those
+ * are kept in buckets instead, like in the bucket sieve of Oliveira e Silva: one bucket per block, holding the primes
+ * whose next multiple is in that block. Processing a block only touches the primes in its bucket, and each is moved
+ * on to the bucket of the block its next multiple is in. A prime never moves more than a few blocks ahead, so the
+ * buckets are a small ring that is reused as the blocks go by. The blocks are counted from where the sieving started,
+ * not from each call, so the buckets are kept between calls too, and a call that goes on where the last one stopped
+ * picks them up as they are.
+ *
+ * The primes up to 13 are not crossed off at all, their multiples are copied into each block from a PreSieve.
+ */
+public class SegmentedSieve {
+    private final SieveStorage array;
+    private final Wheel wheel;
+    private final long[] primes;
+    private final long[] next; // Bit of the next multiple to flip.
+    private final int[] position; // Residue index of the multiplier of the next multiple.
+    private final long blockBits;
+    private final PreSieve presieve;
+    private final int skip; // Number of primes covered by the pre-sieved pattern.
+    private final int large; // Index of the first prime that goes in the buckets.
+    private int count; // Number of primes with a valid next multiple.
+    private long sievedTo = -1; // Where the last call stopped.
+    private long originBit; // Where the sieving started, the blocks are counted from here.
+    private long flipped; // Bits set in this call, for the metrics.
+
+    private final int ring; // Number of buckets, 0 if no prime goes in them.
+    private final int[][] buckets; // Ring of buckets, the indexes of the primes to process in each block.
+    private final int[] bucketSizes;
+
+    private static final int BUCKET_HITS = 8; // Primes that hit a block at most this often go in the buckets.
+
+    /**
+     * Constructor.
+     * @param array The storage to flip bits in.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param primes The sieving primes, sorted ascending. Should contain every prime not in the wheel up to
+     *               sqrt(stop).
+     * @param blockSize The size of each block, in bytes.
+     */
+    SegmentedSieve(SieveStorage array, Wheel wheel, long[] primes, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive.");
+        }
+
+        this.array = array;
+        this.wheel = wheel;
+        this.primes = primes;
+        this.next = new long[primes.length];
+        this.position = new int[primes.length];
+        this.blockBits = (long)blockSize * 8;
+
+        // The smallest primes are copied in as a pattern, the sieving starts after them.
+        this.presieve = PreSieve.of(wheel);
+        int after = Arrays.binarySearch(primes, presieve.largest + 1);
+        this.skip = after >= 0 ? after : -after - 1;
+
+        // A block covers blockBits * modulus / size numbers, a prime hits it about that divided by the prime times.
+        long span = blockBits * wheel.modulus / wheel.size;
+        int index = Arrays.binarySearch(primes, span / BUCKET_HITS + 1);
+        this.large = Math.max(index >= 0 ? index : -index - 1, skip);
+
+        this.ring = large < primes.length ? ringSize(primes[primes.length - 1]) : 0;
+        this.buckets = new int[ring][];
+        this.bucketSizes = new int[ring];
+        for (int b = 0; b < ring; b++) {
+            buckets[b] = new int[64];
+        }
+    }
+
+    /**
+     * Flip all multiples of the sieving primes between start and stop, one block at a time. Each block starts out
+     * with the pre-sieved pattern, so the range must not have been sieved before.
+     * @param start Start point, inclusive.
+     * @param stop Stop point, exclusive.
+     */
+    void sieve(long start, long stop) {
+        sieve(start, stop, 0);
+    }
+
+    /**
+     * Flip all multiples of the sieving primes between start and stop, in a storage that only holds a window of the
+     * bits, one block at a time.
+     * @param start Start point, inclusive.
+     * @param stop Stop point, exclusive.
+     * @param firstBit The bit that bit 0 of the storage stands for. Must not be after the bit of start.
+     */
+    void sieve(long start, long stop, long firstBit) {
+        long startBit = wheel.bits(start);
+        long stopBit = wheel.bits(stop);
+        if (start != sievedTo) {
+            count = skip; // Not a continuation, so every prime needs its first multiple again.
+            originBit = startBit;
+            Arrays.fill(bucketSizes, 0);
+        }
+        sievedTo = stop;
+        long block = (startBit - originBit) / blockBits;
+
+        // Find the first multiple for every prime not used yet. This is the only division we need per prime. The
+        // large ones go in the bucket of the block their first multiple is in.
+        for (; count < primes.length; count++) {
+            long prime = primes[count];
+            if (prime * prime >= stop) {
+                break;
+            }
+
+            long m = wheel.firstMultiplier(prime, start);
+            next[count] = wheel.bitOf(prime * m);
+            position[count] = wheel.indexOf(m);
+            if (count >= large) {
+                addToBucket(bucketOf(next[count], block), count);
+            }
+        }
+        int small = Math.min(count, large);
+
+        for (long low = startBit; low < stopBit; block++) {
+            // The first and last block of a call can be part of a block, when the call does not start on one.
+            long high = Math.min(originBit + (block + 1) * blockBits, stopBit);
+            long highNumber = wheel.numberOf(high);
+
+            presieve.fill(array, low - firstBit, high - firstBit, firstBit);
+            for (int j = skip; j < small; j++) {
+                if (primes[j] * primes[j] >= highNumber) {
+                    break; // Sorted, so no later prime hits this block either.
+                }
+                next[j] = cross(j, next[j], high, firstBit);
+            }
+
+            if (ring > 0) {
+                int b = (int)(block % ring);
+                int[] bucket = buckets[b];
+                int size = bucketSizes[b];
+                bucketSizes[b] = 0;
+
+                // The primes move on to later blocks, or back into this one if it stops early. Those are written
+                // back over the ones already read, so the bucket can be filled while it is read.
+                for (int e = 0; e < size; e++) {
+                    int j = bucket[e];
+                    long bit = cross(j, next[j], high, firstBit);
+                    next[j] = bit;
+                    addToBucket(bucketOf(bit, block), j);
+                }
+            }
+            low = high;
+        }
+
+        if (Metrics.enabled) {
+            Metrics.counters().flipped += flipped;
+        }
+        flipped = 0;
+    }
+
+    /**
+     * Flip the multiples of one prime up to high.
+     * @param j The index of the prime.
+     * @param bit The bit of its next multiple.
+     * @param high The bit to stop at, exclusive.
+     * @param firstBit The bit that bit 0 of the storage stands for.
+     * @return The bit of the next multiple after high.
+     */
+    private long cross(int j, long bit, long high, long firstBit) {
+        long prime = primes[j];
+        if (wheel.size == 1) {
+            // Odd-only layout, every multiple is exactly prime bits further out.
+            long flips = 0;
+            for (; bit < high; bit += prime, flips++) {
+                array.set(bit - firstBit);
+            }
+            flipped += flips;
+            return bit;
+        }
+
+        int[] gaps = wheel.gaps;
+        int size = wheel.size;
+        long turn = (prime / wheel.modulus) * size;
+        int[] deltas = wheel.deltas[wheel.indexOf(prime)];
+        int p = position[j];
+        long flips = 0;
+        while (bit < high) {
+            array.set(bit - firstBit);
+            bit += turn * gaps[p] + deltas[p];
+            if (++p == size) p = 0;
+            flips++;
+        }
+        position[j] = p;
+        flipped += flips;
+        return bit;
+    }
+
+    /**
+     * @param largest The largest prime in the buckets.
+     * @return The number of buckets the ring needs so no prime up to the given one wraps around past the current block.
+     */
+    private int ringSize(long largest) {
+        int maxGap = 0;
+        for (int gap : wheel.gaps) {
+            maxGap = Math.max(maxGap, gap);
+        }
+        // Consecutive multiples are at most maxGap * largest numbers apart, which is this many bits, rounded up.
+        long stepBits = maxGap * largest * wheel.size / wheel.modulus + wheel.size + 1;
+        return (int)(stepBits / blockBits) + 2;
+    }
+
+    /**
+     * Find the bucket for a multiple. The first multiple of a prime can be at its square, far beyond the ring, so
+     * those are parked in the last bucket of the ring and placed again when it comes up.
+     * @param bit The bit of the multiple, not before the current block.
+     * @param block The current block.
+     * @return The bucket.
+     */
+    private int bucketOf(long bit, long block) {
+        long target = Math.min((bit - originBit) / blockBits, block + ring - 1);
+        return (int)(target % ring);
+    }
+
+    /**
+     * Add a prime to a bucket, growing it if it is full.
+     * @param b The bucket.
+     * @param j The index of the prime.
+     */
+    private void addToBucket(int b, int j) {
+        int size = bucketSizes[b];
+        if (size == buckets[b].length) {
+            buckets[b] = Arrays.copyOf(buckets[b], size * 2);
+        }
+        buckets[b][size] = j;
+        bucketSizes[b] = size + 1;
+    }
+}
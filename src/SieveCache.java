@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * File cache of a finished sieve, so a later run can map it in instead of sieving again.
+ *
+ * The file is a header followed by the words of the storage, all little endian:
+ *   0: long - Magic number, "PRMSIEVE".
+ *   8: int  - Format version.
+ *  12: int  - Wheel modulus the bits are laid out with.
+ *  16: long - n, every number below it is sieved.
+ *  24: long - Number of bits.
+ *  32: long - CRC32 of the words.
+ *  40: The words, as SieveStorage stores them.
+ *
+ * A cache for a bigger n can be used for any smaller n. If the cache is for a smaller n, the storage is filled up to
+ * that n and the caller only has to sieve the rest, then save() the result for the next run.
+ *
+ * A cache for another wheel can not be used, but it is not replaced either unless asked to, since it may have taken
+ * a long time to sieve.
+ */
+public class SieveCache {
+    private static final long MAGIC = 0x45564549534D5250L; // "PRMSIEVE", read little endian.
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final long MAP_WORDS = 1L << 26; // Words per mapping, 512 MiB.
+
+    private final Path path;
+    private final Wheel wheel;
+    private final boolean overwrite; // True to replace a cache for another wheel.
+
+    /**
+     * Constructor.
+     * @param path The cache file, does not have to exist yet.
+     * @param wheel The wheel the storages are laid out with.
+     * @param overwrite True to let save() replace a cache that was made with another wheel.
+     */
+    SieveCache(Path path, Wheel wheel, boolean overwrite) {
+        this.path = path;
+        this.wheel = wheel;
+        this.overwrite = overwrite;
+    }
+
+    /**
+     * Fill the storage from the cache file.
+     * @param array The storage to fill, all bits unset.
+     * @param n The number the storage is for.
+     * @return The number the storage is now sieved up to, exclusive. 0 if there is no cache file yet.
+     * @throws IOException If the file can not be read, or is not a valid cache for this wheel. The storage is not
+     *                     touched then.
+     */
+    long load(SieveStorage array, long n) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(path + " is too small to be a sieve cache.");
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC) {
+                throw new IOException(path + " is not a sieve cache.");
+            }
+            if (header.getInt(8) != VERSION) {
+                throw new IOException(path + " has version " + header.getInt(8) + ", expected " + VERSION + ".");
+            }
+            if (header.getInt(12) != wheel.modulus) {
+                throw new IOException(path + " uses wheel " + header.getInt(12) + ", expected " + wheel.modulus + ".");
+            }
+            long cachedN = header.getLong(16);
+            long cachedBits = header.getLong(24);
+            long checksum = header.getLong(32);
+            long cachedWords = (cachedBits + 63) >>> 6;
+            if (cachedN < 0 || cachedBits != wheel.bits(cachedN) || size != HEADER_SIZE + cachedWords * 8) {
+                throw new IOException(path + " has an inconsistent header.");
+            }
+
+            // Check everything before copying anything, so a bad file leaves the storage as it was.
+            CRC32 crc = new CRC32();
+            for (long word = 0; word < cachedWords; word += MAP_WORDS) {
+                crc.update(map(channel, word, Math.min(MAP_WORDS, cachedWords - word)));
+            }
+            if (crc.getValue() != checksum) {
+                throw new IOException(path + " is corrupt, the checksum does not match.");
+            }
+
+            long copy = Math.min(cachedWords, array.words());
+            for (long word = 0; word < copy; word += MAP_WORDS) {
+                long count = Math.min(MAP_WORDS, copy - word);
+                array.putWords(word, map(channel, word, count).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+            }
+
+            // A bigger cache has bits past the end of the storage in the last word, clear them like a fresh sieve.
+            long used = array.bits() & 63;
+            if (cachedBits > array.bits() && used != 0) {
+                long last = array.words() - 1;
+                array.setWord(last, array.getWord(last) & ((1L << used) - 1));
+            }
+
+            return Math.min(cachedN, n);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Write a finished sieve to the cache file, replacing the old one. The file is written next to it first and then
+     * moved in place, so a run that is stopped halfway never leaves a broken cache behind.
+     * @param array The sieved storage.
+     * @param n The number the storage is sieved up to, exclusive.
+     * @throws IOException If the file can not be written, or holds a cache for another wheel and overwrite is off.
+     */
+    void save(SieveStorage array, long n) throws IOException {
+        if (!overwrite) {
+            int other = wheelOf(path);
+            if (other != 0 && other != wheel.modulus) {
+                throw new IOException(path + " holds a sieve for wheel " + other + ", not replacing it with wheel "
+                        + wheel.modulus + ".");
+            }
+        }
+
+        Path temporary = Paths.get(path + ".tmp");
+        long words = array.words();
+
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            LongBuffer longs = buffer.asLongBuffer();
+            channel.position(HEADER_SIZE);
+
+            for (long word = 0; word < words; word += longs.capacity()) {
+                int count = (int)Math.min(longs.capacity(), words - word);
+                longs.clear().limit(count);
+                array.getWords(word, longs);
+
+                buffer.clear().limit(count * 8);
+                crc.update(buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(VERSION).putInt(wheel.modulus).putLong(n).putLong(array.bits()).putLong(crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param path A file.
+     * @return The wheel modulus of the sieve cache in it, or 0 if it is not there or is not a sieve cache.
+     * @throws IOException If the file is there but can not be read.
+     */
+    private static int wheelOf(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                return 0;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+                return 0;
+            }
+            return header.getInt(12);
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Map a range of the words in the file.
+     * @param channel The open cache file.
+     * @param word The index of the first word.
+     * @param count The number of words, at most MAP_WORDS.
+     * @return The mapped bytes.
+     */
+    private static MappedByteBuffer map(FileChannel channel, long word, long count) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + word * 8, count * 8);
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Rank and select index over a finished sieve, answering how many primes are at most x, which is the i-th prime, and
+ * which is the next prime from x, without walking the sieve.
+ *
+ * The unset bits are the primes, so the index counts unset bits. The sieve is split in superblocks of 4096 bits,
+ * with the number of unset bits before each superblock in a long, and those in blocks of 512 bits, with the number
+ * of unset bits from the start of the superblock to the block in a char. Counting up to any bit is then one long, one
+ * char and at most 8 word popcounts. That is 64 + 8 * 16 bits per 4096, about 4.7% on top of the sieve.
+ *
+ * For select, the superblock holding every 4096th prime is sampled. Finding the i-th prime starts at the sample
+ * below it and moves on through the superblocks, which only takes a few steps since primes are not far apart at any
+ * size the sieve can hold. Then the blocks and words are stepped through, and the bit is picked out of the word.
+ *
+ * The superblocks are counted in parallel, in parts like PrimeTable, and then added up by one thread.
+ */
+public class SieveIndex {
+    private static final int WORD_SHIFT = 6;
+    private static final int BLOCK_SHIFT = 9; // 512 bits, 8 words.
+    private static final int SUPER_SHIFT = 12; // 4096 bits, 8 blocks.
+    private static final int SAMPLE_SHIFT = 12; // Sample the superblock of every 4096th prime.
+
+    private final SieveStorage array;
+    private final Wheel wheel;
+    private final long n;
+    private final long first, end; // The bits to count, from the first sieving prime up to n.
+
+    private final long[] superRanks; // Unset bits from first up to each superblock, with one more at the end.
+    private final char[] blockRanks; // Unset bits from the start of the superblock up to each block.
+    private final int[] samples; // samples[s] is the superblock holding unset bit number s * 4096.
+    private final long total; // Unset bits from first to end.
+
+    /**
+     * Constructor, counts the bits.
+     * @param array The finished sieve.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param n The sieve holds the numbers below n.
+     * @param threads The number of threads to count with.
+     */
+    private SieveIndex(SieveStorage array, Wheel wheel, long n, int threads) {
+        this.array = array;
+        this.wheel = wheel;
+        this.n = n;
+        this.first = wheel.bits(wheel.firstSievingPrime()); // Bit 0 is 1, which is not a prime.
+        this.end = Math.max(wheel.bits(n), first);
+
+        int supers = (int)((end + (1L << SUPER_SHIFT) - 1) >>> SUPER_SHIFT);
+        superRanks = new long[supers + 1];
+        blockRanks = new char[(int)((end + (1L << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT)];
+
+        // Every thread counts its own superblocks, which do not share any words.
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int from = (int)((long)supers * i / threads), to = (int)((long)supers * (i + 1) / threads);
+            workers[i] = new Thread(() -> countSupers(from, to));
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // superRanks holds the count of each superblock so far, turn it into the count before each one.
+        long rank = 0;
+        for (int s = 0; s < supers; s++) {
+            long count = superRanks[s];
+            superRanks[s] = rank;
+            rank += count;
+        }
+        superRanks[supers] = rank;
+        total = rank;
+
+        samples = new int[(int)((total >>> SAMPLE_SHIFT) + 1)];
+        for (int s = 0, sample = 0; s < supers; s++) {
+            while (sample < samples.length && ((long)sample << SAMPLE_SHIFT) < superRanks[s + 1]) {
+                samples[sample++] = s;
+            }
+        }
+    }
+
+    /**
+     * Index a finished sieve.
+     * @param array The finished sieve.
+     * @param wheel The wheel deciding which numbers are stored in the bits.
+     * @param n The sieve holds the numbers below n.
+     * @param threads The number of threads to count with.
+     * @return The index.
+     */
+    static SieveIndex build(SieveStorage array, Wheel wheel, long n, int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Need at least one thread.");
+        }
+        return new SieveIndex(array, wheel, n, threads);
+    }
+
+    /**
+     * Count the unset bits of some superblocks, and of the blocks in them.
+     * @param from The first superblock, inclusive.
+     * @param to The last superblock, exclusive.
+     */
+    private void countSupers(int from, int to) {
+        for (int s = from; s < to; s++) {
+            long count = 0;
+            for (int b = s << (SUPER_SHIFT - BLOCK_SHIFT); b < blockRanks.length && b < (s + 1) << (SUPER_SHIFT - BLOCK_SHIFT); b++) {
+                blockRanks[b] = (char)count;
+                long low = (long)b << BLOCK_SHIFT;
+                count += countClear(low, low + (1 << BLOCK_SHIFT));
+            }
+            superRanks[s] = count;
+        }
+    }
+
+    /**
+     * @param from The first bit, inclusive.
+     * @param to The last bit, exclusive.
+     * @return The unset bits in the range, only counting from first up to end.
+     */
+    private long countClear(long from, long to) {
+        return array.countClear(Math.max(from, first), Math.min(to, end));
+    }
+
+    /**
+     * @param bit A bit.
+     * @return The number of unset bits from first up to the bit, exclusive.
+     */
+    private long rank(long bit) {
+        if (bit >= end) {
+            return total;
+        }
+        long block = bit >>> BLOCK_SHIFT;
+        long rank = superRanks[(int)(bit >>> SUPER_SHIFT)] + blockRanks[(int)block];
+        return rank + countClear(block << BLOCK_SHIFT, bit);
+    }
+
+    /**
+     * @param r A rank, below total.
+     * @return The bit of unset bit number r, counting from 0.
+     */
+    private long select(long r) {
+        int s = samples[(int)(r >>> SAMPLE_SHIFT)];
+        while (superRanks[s + 1] <= r) {
+            s++;
+        }
+        r -= superRanks[s];
+
+        int b = s << (SUPER_SHIFT - BLOCK_SHIFT);
+        int lastBlock = Math.min(blockRanks.length, (s + 1) << (SUPER_SHIFT - BLOCK_SHIFT)) - 1;
+        while (b < lastBlock && blockRanks[b + 1] <= r) {
+            b++;
+        }
+        r -= blockRanks[b];
+
+        for (long word = (long)b << (BLOCK_SHIFT - WORD_SHIFT); ; word++) {
+            long inverted = ~array.getWord(word);
+            long low = word << WORD_SHIFT;
+            if (low < first) inverted &= -1L << first; // Ignore the bits below first, they are not counted.
+            if (low + 64 > end) inverted &= -1L >>> (low + 64 - end); // Nor the bits from end and up.
+            int count = Long.bitCount(inverted);
+            if (r < count) {
+                for (; r > 0; r--) {
+                    inverted &= inverted - 1; // Clear the lowest unset bit of the sieve until the one we want is lowest.
+                }
+                return low + Long.numberOfTrailingZeros(inverted);
+            }
+            r -= count;
+        }
+    }
+
+    /**
+     * @param x A number.
+     * @return The number of primes p <= x, for x below n.
+     * @throws IllegalArgumentException If x is not below n.
+     */
+    long primeCount(long x) throws IllegalArgumentException {
+        if (x >= n) {
+            throw new IllegalArgumentException("The sieve only goes up to " + n + ".");
+        }
+        long count = 0;
+        for (long p : wheel.wheelPrimes) {
+            if (p <= x) count++;
+        }
+        return x < wheel.firstSievingPrime() ? count : count + rank(wheel.bits(x + 1));
+    }
+
+    /**
+     * @param i Which prime, counting from 1 for 2.
+     * @return Prime number i, or -1 if it is not below n.
+     * @throws IllegalArgumentException If i is not positive.
+     */
+    long nthPrime(long i) throws IllegalArgumentException {
+        if (i <= 0) {
+            throw new IllegalArgumentException("Primes are counted from 1.");
+        }
+        int wheelCount = wheel.wheelPrimes.length;
+        if (i <= wheelCount) {
+            return wheel.wheelPrimes[(int)i - 1] < n ? wheel.wheelPrimes[(int)i - 1] : -1;
+        }
+        long r = i - wheelCount - 1;
+        return r < total ? wheel.numberOf(select(r)) : -1;
+    }
+
+    /**
+     * @param x A number.
+     * @return The first prime p >= x, or -1 if there is none below n.
+     */
+    long nextPrime(long x) {
+        if (x <= 2) {
+            return n > 2 ? 2 : -1;
+        }
+        if (x >= n) {
+            return -1;
+        }
+        return nthPrime(primeCount(x - 1) + 1);
+    }
+
+    /**
+     * @return The number of primes below n.
+     */
+    long count() {
+        return n > 2 ? primeCount(n - 1) : 0;
+    }
+}
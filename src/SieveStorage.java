@@ -0,0 +1,258 @@
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Bit storage for the sieve, indexed by long so it is not capped by the maximum size of a Java array.
+ *
+ * The bits are stored in chunks of long words, with the same layout as a single big byte array would have had:
+ * bit b lives in byte b / 8, at position b % 8, since byte c is the (c % 8)th lowest byte of word c / 8.
+ * With the odd-only layout in Primes that is still 16 numbers per byte, so memory use per number is the same.
+ *
+ * Using whole words lets us look for the next unmarked bit 64 bits at a time, and the loops over many words go
+ * through WordKernels, which can do several words at a time.
+ */
+public class SieveStorage {
+    private static final int CHUNK_SHIFT = 27; // 2^27 words, 1 GiB per chunk.
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final long[][] chunks;
+    private final long bits;
+
+    /**
+     * Constructor, all bits start unset.
+     * @param bits The number of bits to store.
+     * @throws IllegalArgumentException If bits is negative.
+     */
+    SieveStorage(long bits) throws IllegalArgumentException {
+        if (bits < 0) {
+            throw new IllegalArgumentException("Can not store a negative number of bits.");
+        }
+
+        this.bits = bits;
+        long words = (bits + 63) >>> 6;
+
+        chunks = new long[(int)((words + CHUNK_MASK) >>> CHUNK_SHIFT)][];
+        for (int i = 0; i < chunks.length; i++) {
+            long size = Math.min(words - ((long)i << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+            chunks[i] = new long[(int)size];
+        }
+    }
+
+    /**
+     * @return The number of bits stored.
+     */
+    long bits() {
+        return bits;
+    }
+
+    /**
+     * @return The number of bytes used to store the bits.
+     */
+    long bytes() {
+        return (bits + 7) >>> 3;
+    }
+
+    /**
+     * @return The number of words used to store the bits.
+     */
+    long words() {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Unset all bits, so the storage can be reused for another range.
+     */
+    void clear() {
+        for (long[] chunk : chunks) {
+            Arrays.fill(chunk, 0);
+        }
+    }
+
+    /**
+     * Set a bit.
+     * @param bit The index of the bit to set.
+     */
+    void set(long bit) {
+        long word = bit >>> 6;
+        chunks[(int)(word >>> CHUNK_SHIFT)][(int)(word & CHUNK_MASK)] |= (1L << bit); // Shift only uses the low 6 bits.
+    }
+
+    /**
+     * Check a bit.
+     * @param bit The index of the bit to check.
+     * @return True if the bit is set, false otherwise.
+     */
+    boolean get(long bit) {
+        long word = bit >>> 6;
+        return (chunks[(int)(word >>> CHUNK_SHIFT)][(int)(word & CHUNK_MASK)] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Get a whole byte of bits, used when printing the content of the storage.
+     * @param cell The index of the byte.
+     * @return The byte.
+     */
+    byte getByte(long cell) {
+        return (byte)(getWord(cell >>> 3) >>> ((cell & 7) << 3));
+    }
+
+    /**
+     * Get a whole word of bits, used when comparing two storages.
+     * @param word The index of the word.
+     * @return The word.
+     */
+    long getWord(long word) {
+        return chunks[(int)(word >>> CHUNK_SHIFT)][(int)(word & CHUNK_MASK)];
+    }
+
+    /**
+     * Replace a whole word of bits.
+     * @param word The index of the word.
+     * @param value The new bits.
+     */
+    void setWord(long word, long value) {
+        chunks[(int)(word >>> CHUNK_SHIFT)][(int)(word & CHUNK_MASK)] = value;
+    }
+
+    /**
+     * Copy words from a buffer into the storage, used when loading a cached sieve.
+     * @param word The index of the first word to replace.
+     * @param source The words to copy, all of its remaining words are copied.
+     */
+    void putWords(long word, LongBuffer source) {
+        while (source.hasRemaining()) {
+            long[] chunk = chunks[(int)(word >>> CHUNK_SHIFT)];
+            int offset = (int)(word & CHUNK_MASK);
+            int count = Math.min(source.remaining(), chunk.length - offset);
+            source.get(chunk, offset, count);
+            word += count;
+        }
+    }
+
+    /**
+     * Copy words from the storage into a buffer, used when writing a cached sieve.
+     * @param word The index of the first word to copy.
+     * @param target The buffer to fill, until it has no space remaining.
+     */
+    void getWords(long word, LongBuffer target) {
+        while (target.hasRemaining()) {
+            long[] chunk = chunks[(int)(word >>> CHUNK_SHIFT)];
+            int offset = (int)(word & CHUNK_MASK);
+            int count = Math.min(target.remaining(), chunk.length - offset);
+            target.put(chunk, offset, count);
+            word += count;
+        }
+    }
+
+    /**
+     * Put together words from a pattern that does not line up with the words of the storage, see
+     * WordKernels.shiftCopy.
+     * @param word The index of the first word to replace.
+     * @param source The pattern, with count + 1 words from offset.
+     * @param offset The first word of the pattern to read.
+     * @param shift How many bits into source[offset] the first word starts, from 1 to 63.
+     * @param count The number of words to replace.
+     */
+    void shiftWords(long word, long[] source, int offset, int shift, int count) {
+        while (count > 0) {
+            long[] chunk = chunks[(int)(word >>> CHUNK_SHIFT)];
+            int start = (int)(word & CHUNK_MASK);
+            int n = Math.min(count, chunk.length - start);
+            WordKernels.KERNELS.shiftCopy(chunk, start, source, offset, shift, n);
+            word += n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Count the bits that are not set. The words in the middle of the range are counted by WordKernels.
+     * @param from The first bit to count, inclusive.
+     * @param to The last bit to count, exclusive.
+     * @return The number of unset bits in the range.
+     */
+    long countClear(long from, long to) {
+        if (from >= to) {
+            return 0;
+        }
+
+        long firstWord = from >>> 6, lastWord = (to - 1) >>> 6;
+        long first = ~getWord(firstWord) & (-1L << from); // Ignore the bits below from.
+        long lastMask = -1L >>> (63 - ((to - 1) & 63)); // And the bits from to and up.
+        if (firstWord == lastWord) {
+            return Long.bitCount(first & lastMask);
+        }
+
+        long count = Long.bitCount(first) + Long.bitCount(~getWord(lastWord) & lastMask);
+        for (long word = firstWord + 1; word < lastWord; ) {
+            long[] chunk = chunks[(int)(word >>> CHUNK_SHIFT)];
+            int start = (int)(word & CHUNK_MASK);
+            int end = (int)Math.min(chunk.length, start + (lastWord - word));
+            count += WordKernels.KERNELS.countClear(chunk, start, end);
+            word += end - start;
+        }
+        return count;
+    }
+
+    /**
+     * Find the first bit that is not set. The words after the first are scanned by WordKernels.
+     * @param from The first bit to check, inclusive.
+     * @param to The last bit to check, exclusive.
+     * @return The index of the first unset bit in the range, or -1 if all of them are set.
+     */
+    long nextClear(long from, long to) {
+        if (from >= to) {
+            return -1;
+        }
+
+        long word = from >>> 6;
+        long inverted = ~getWord(word) & (-1L << from); // Ignore the bits below from.
+        long lastWord = (to - 1) >>> 6;
+
+        // The gaps between primes are short, so most scans stop within a few words. Those are checked one by one,
+        // and only longer scans go to WordKernels.
+        for (int i = 0; i < 4 && inverted == 0; i++) {
+            if (++word > lastWord) {
+                return -1;
+            }
+            inverted = ~getWord(word);
+        }
+        while (inverted == 0) {
+            if (++word > lastWord) {
+                return -1;
+            }
+            long[] chunk = chunks[(int)(word >>> CHUNK_SHIFT)];
+            int start = (int)(word & CHUNK_MASK);
+            int end = (int)Math.min(chunk.length, start + (lastWord - word) + 1);
+            int found = WordKernels.KERNELS.firstNotFull(chunk, start, end);
+            if (found < 0) {
+                word += end - start - 1; // None in this chunk, go on from the last word of it.
+                continue;
+            }
+            word += found - start;
+            inverted = ~getWord(word);
+        }
+
+        long bit = (word << 6) + Long.numberOfTrailingZeros(inverted);
+        return bit < to ? bit : -1;
+    }
+
+    /**
+     * Find the first word that differs from the same word of another storage, used to check the sieves agree.
+     * @param other The other storage, with the same number of bits.
+     * @param from The first word to compare.
+     * @return The index of the first word from from that differs, or -1 if they are all equal.
+     */
+    long mismatch(SieveStorage other, long from) {
+        for (long word = from; word < words(); ) {
+            int c = (int)(word >>> CHUNK_SHIFT);
+            int start = (int)(word & CHUNK_MASK);
+            int found = WordKernels.KERNELS.mismatch(chunks[c], start, other.chunks[c], start, chunks[c].length - start);
+            if (found >= 0) {
+                return word + found;
+            }
+            word += chunks[c].length - start;
+        }
+        return -1;
+    }
+}
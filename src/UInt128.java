@@ -0,0 +1,221 @@
+/**
+ * Unsigned 128-bit number, so the numbers n * n - 1 - i do not overflow a long for big n.
+ *
+ * Multiplication is built on Math.multiplyHigh, and division by a 64-bit divisor on Long.divideUnsigned, so there
+ * is no BigInteger anywhere. remainder() does not allocate at all, which is what trial division mostly calls.
+ */
+public final class UInt128 implements Comparable<UInt128> {
+    static final UInt128 ONE = new UInt128(0, 1);
+
+    private static final long TEN_18 = 1000000000000000000L;
+
+    final long high, low;
+
+    /**
+     * Constructor.
+     * @param high The high 64 bits, unsigned.
+     * @param low The low 64 bits, unsigned.
+     */
+    UInt128(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param value A number, not negative.
+     * @return The number as a 128-bit number.
+     */
+    static UInt128 of(long value) {
+        return new UInt128(0, value);
+    }
+
+    /**
+     * @param a A number, treated as unsigned.
+     * @param b A number, treated as unsigned.
+     * @return The full 128-bit product.
+     */
+    static UInt128 multiply(long a, long b) {
+        return new UInt128(multiplyHigh(a, b), a * b);
+    }
+
+    /**
+     * @param a A number, treated as unsigned.
+     * @param b A number, treated as unsigned.
+     * @return The high 64 bits of the unsigned 128-bit product.
+     */
+    static long multiplyHigh(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    /**
+     * @param x A number, not negative and not bigger than this.
+     * @return This minus x.
+     */
+    UInt128 subtract(long x) {
+        long result = low - x;
+        return new UInt128(Long.compareUnsigned(result, low) > 0 ? high - 1 : high, result);
+    }
+
+    /**
+     * @param divisor A positive number.
+     * @return This modulo divisor.
+     */
+    long remainder(long divisor) {
+        if (high == 0) {
+            return low >= 0 ? low % divisor : Long.remainderUnsigned(low, divisor);
+        }
+        if (divisor <= 0xFFFFFFFFL) {
+            // The remainder fits in 32 bits, so we can bring down 32 bits at a time.
+            long rest = Long.remainderUnsigned(high, divisor);
+            rest = Long.remainderUnsigned((rest << 32) | (low >>> 32), divisor);
+            return Long.remainderUnsigned((rest << 32) | (low & 0xFFFFFFFFL), divisor);
+        }
+        long rest = Long.remainderUnsigned(high, divisor);
+        return low - divideLow(rest, low, divisor) * divisor; // Exact, since the remainder fits in 64 bits.
+    }
+
+    /**
+     * @param divisor A positive number.
+     * @return This divided by divisor, rounded down.
+     */
+    UInt128 divide(long divisor) {
+        if (high == 0) {
+            return new UInt128(0, low >= 0 ? low / divisor : Long.divideUnsigned(low, divisor));
+        }
+        long quotientHigh = Long.divideUnsigned(high, divisor);
+        long rest = high - quotientHigh * divisor;
+        return new UInt128(quotientHigh, divideLow(rest, low, divisor));
+    }
+
+    /**
+     * @return True if this fits in a (signed) long.
+     */
+    boolean fitsInLong() {
+        return high == 0 && low >= 0;
+    }
+
+    /**
+     * @return The number as a long, only valid if fitsInLong().
+     */
+    long longValue() {
+        return low;
+    }
+
+    /**
+     * @return True if this is 1.
+     */
+    boolean isOne() {
+        return high == 0 && low == 1;
+    }
+
+    /**
+     * @return True if this is 0.
+     */
+    boolean isZero() {
+        return high == 0 && low == 0;
+    }
+
+    /**
+     * @return True if this is even.
+     */
+    boolean isEven() {
+        return (low & 1) == 0;
+    }
+
+    /**
+     * @param x A number, not negative.
+     * @return This times x, assuming it fits in 128 bits.
+     */
+    UInt128 multiply(long x) {
+        return new UInt128(high * x + multiplyHigh(low, x), low * x);
+    }
+
+    /**
+     * @return The integer square root, rounded down. Only for numbers below 2^126.
+     */
+    long sqrt() {
+        double approximate = (high >>> 1) * 0x1p65 + (high & 1) * 0x1p64 + (low >>> 1) * 2.0 + (low & 1);
+        long r = (long)Math.sqrt(approximate);
+        // A few Newton steps fix the rounding in the double, the loops below fix the last step.
+        for (int i = 0; i < 4 && r > 0; i++) {
+            UInt128 quotient = divide(r);
+            if (quotient.high != 0) {
+                break;
+            }
+            long next = (r >>> 1) + (quotient.low >>> 1) + (r & quotient.low & 1);
+            if (next == r) {
+                break;
+            }
+            r = next;
+        }
+        while (r > 0 && multiply(r, r).compareTo(this) > 0) r--;
+        while (multiply(r + 1, r + 1).compareTo(this) <= 0) r++;
+        return r;
+    }
+
+    @Override
+    public int compareTo(UInt128 other) {
+        int result = Long.compareUnsigned(high, other.high);
+        return result != 0 ? result : Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof UInt128 && ((UInt128)other).high == high && ((UInt128)other).low == low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        if (high == 0) {
+            return Long.toUnsignedString(low);
+        }
+
+        // Split into 18 decimal digits at a time, from the bottom.
+        UInt128 upper = divide(TEN_18);
+        String bottom = Long.toString(remainder(TEN_18));
+        return upper + "000000000000000000".substring(bottom.length()) + bottom;
+    }
+
+    /**
+     * Divide the 128-bit number (rest, low) by divisor, when rest < divisor so the quotient fits in 64 bits.
+     * This is divlu from Hacker's Delight, using 32-bit halves.
+     * @param rest The high 64 bits, below divisor.
+     * @param low The low 64 bits.
+     * @param divisor A positive number.
+     * @return The quotient.
+     */
+    static long divideLow(long rest, long low, long divisor) {
+        final long b = 1L << 32;
+        int shift = Long.numberOfLeadingZeros(divisor);
+        divisor <<= shift;
+        long vn1 = divisor >>> 32, vn0 = divisor & 0xFFFFFFFFL;
+
+        long un32 = shift == 0 ? rest : (rest << shift) | (low >>> (64 - shift));
+        long un10 = low << shift;
+        long un1 = un10 >>> 32, un0 = un10 & 0xFFFFFFFFL;
+
+        long q1 = Long.divideUnsigned(un32, vn1);
+        long rhat = un32 - q1 * vn1;
+        while (Long.compareUnsigned(q1, b) >= 0 || Long.compareUnsigned(q1 * vn0, b * rhat + un1) > 0) {
+            q1--;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, b) >= 0) break;
+        }
+
+        long un21 = un32 * b + un1 - q1 * divisor;
+        long q0 = Long.divideUnsigned(un21, vn1);
+        rhat = un21 - q0 * vn1;
+        while (Long.compareUnsigned(q0, b) >= 0 || Long.compareUnsigned(q0 * vn0, b * rhat + un0) > 0) {
+            q0--;
+            rhat += vn1;
+            if (Long.compareUnsigned(rhat, b) >= 0) break;
+        }
+
+        return q1 * b + q0;
+    }
+}
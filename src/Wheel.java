@@ -0,0 +1,186 @@
+/**
+ * Wheel factorization, maps numbers to bits in the sieve so that only numbers coprime to the wheel modulus are stored.
+ *
+ * The odd-only layout from the course code is the wheel with modulus 2: one residue (1) out of every 2 numbers,
+ * so bit i / 2 represents i and a byte holds 16 numbers. With modulus 30 there are 8 residues out of every 30
+ * numbers (30 numbers per byte), and with modulus 210 there are 48 out of every 210.
+ *
+ * The primes dividing the modulus (2, 3, 5 and 7) are not represented in the bits, they are handled separately.
+ */
+public class Wheel {
+    static final Wheel ODD = new Wheel(2);
+    static final Wheel MOD30 = new Wheel(30);
+    static final Wheel MOD210 = new Wheel(210);
+
+    final int modulus;
+    final int size; // Number of residues, bits per turn of the wheel.
+    final long[] wheelPrimes; // The primes dividing the modulus.
+    final int[] residues; // The residues coprime to the modulus, ascending.
+    final int[] gaps; // gaps[j] = residues[j + 1] - residues[j], the last one wrapping around to the next turn.
+    final int[][] deltas; // See bitDeltas().
+
+    private final int[] index; // Index of each residue in residues, -1 if not coprime.
+    private final int[] nextIndex; // Index of the first residue >= r, size if there is none.
+
+    /**
+     * Constructor.
+     * @param modulus The wheel modulus, the product of the first few primes.
+     */
+    private Wheel(int modulus) {
+        this.modulus = modulus;
+
+        int count = 0;
+        for (int r = 0; r < modulus; r++) {
+            if (gcd(r, modulus) == 1) count++;
+        }
+        size = count;
+
+        residues = new int[size];
+        index = new int[modulus];
+        nextIndex = new int[modulus + 1];
+        count = 0;
+        for (int r = 0; r < modulus; r++) {
+            if (gcd(r, modulus) == 1) {
+                index[r] = count;
+                residues[count++] = r;
+            } else {
+                index[r] = -1;
+            }
+        }
+        for (int r = modulus, j = size; r >= 0; r--) {
+            if (r < modulus && index[r] != -1) j = index[r];
+            nextIndex[r] = j;
+        }
+
+        gaps = new int[size];
+        for (int j = 0; j < size; j++) {
+            gaps[j] = (j + 1 < size ? residues[j + 1] : modulus + residues[0]) - residues[j];
+        }
+
+        count = 0;
+        long[] found = new long[8];
+        for (int p = 2, rest = modulus; rest > 1; p++) {
+            if (rest % p == 0) {
+                found[count++] = p;
+                while (rest % p == 0) rest /= p;
+            }
+        }
+        wheelPrimes = java.util.Arrays.copyOf(found, count);
+
+        deltas = new int[size][];
+        for (int a = 0; a < size; a++) {
+            deltas[a] = bitDeltas(residues[a]);
+        }
+    }
+
+    /**
+     * Find the wheel matching the given modulus.
+     * @param modulus 2, 30 or 210.
+     * @return The wheel.
+     * @throws IllegalArgumentException If there is no wheel with that modulus.
+     */
+    static Wheel of(int modulus) throws IllegalArgumentException {
+        switch (modulus) {
+            case 2: return ODD;
+            case 30: return MOD30;
+            case 210: return MOD210;
+            default: throw new IllegalArgumentException("Unsupported wheel modulus: " + modulus);
+        }
+    }
+
+    /**
+     * The bit deltas for walking the multiples p*m of a prime p, where m runs over the numbers coprime to the
+     * modulus. If p = P * modulus + a and m is at residue index j, the bit of the next multiple is
+     * size * P * gaps[j] + deltas[index of a][j] bits further out. This lets the sieve step from multiple to
+     * multiple without any division.
+     * @param a The residue of the prime.
+     * @return The delta for each residue index of m.
+     */
+    private int[] bitDeltas(int a) {
+        int[] result = new int[size];
+        for (int j = 0; j < size; j++) {
+            long from = (long)a * residues[j];
+            long to = (long)a * (residues[j] + gaps[j]);
+            result[j] = (int)(size * (to / modulus - from / modulus)
+                    + index[(int)(to % modulus)] - index[(int)(from % modulus)]);
+        }
+        return result;
+    }
+
+    /**
+     * @param x A number.
+     * @return The number of bits needed for all numbers below x, which is also the bit of the first number >= x.
+     */
+    long bits(long x) {
+        if (x <= 0) return 0;
+        if (size == 1) return x >>> 1; // Odd numbers only.
+        return (x / modulus) * size + nextIndex[(int)(x % modulus)];
+    }
+
+    /**
+     * @param i A number.
+     * @return True if i is coprime to the modulus, meaning it has a bit in the sieve.
+     */
+    boolean isCandidate(long i) {
+        if (size == 1) return (i & 1) != 0;
+        return index[(int)(i % modulus)] != -1;
+    }
+
+    /**
+     * @param i A number coprime to the modulus.
+     * @return The bit representing i.
+     */
+    long bitOf(long i) {
+        if (size == 1) return i >>> 1;
+        return (i / modulus) * size + index[(int)(i % modulus)];
+    }
+
+    /**
+     * @param bit A bit in the sieve.
+     * @return The number represented by the bit.
+     */
+    long numberOf(long bit) {
+        if (size == 1) return (bit << 1) | 1;
+        return (bit / size) * modulus + residues[(int)(bit % size)];
+    }
+
+    /**
+     * @param i A number coprime to the modulus.
+     * @return The residue index of i, used to look up gaps and deltas.
+     */
+    int indexOf(long i) {
+        if (size == 1) return 0;
+        return index[(int)(i % modulus)];
+    }
+
+    /**
+     * @param x A number.
+     * @return The first number >= x that is coprime to the modulus.
+     */
+    long nextCandidate(long x) {
+        return numberOf(bits(x));
+    }
+
+    /**
+     * @return The first prime that is not part of the wheel, which is where sieving starts.
+     */
+    long firstSievingPrime() {
+        return numberOf(1);
+    }
+
+    /**
+     * Find the first multiplier m to use for the prime, so that prime * m is the first multiple to flip from start.
+     * Multiples below prime * prime are already flipped by smaller primes.
+     * @param prime The prime.
+     * @param start The first number to consider.
+     * @return The first m >= prime, coprime to the modulus, with prime * m >= start.
+     */
+    long firstMultiplier(long prime, long start) {
+        long m = (start + prime - 1) / prime;
+        return nextCandidate(m > prime ? m : prime);
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+}
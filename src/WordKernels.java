@@ -0,0 +1,99 @@
+import java.util.Arrays;
+
+/**
+ * The loops over whole words of a sieve: copying the pre-sieved pattern, looking for a word with an unset bit,
+ * counting unset bits and comparing two sieves. SieveStorage calls these on its chunks.
+ *
+ * This class is the scalar version, a long at a time. VectorWordKernels in src-vector overrides the loops with the
+ * Vector API, several words per instruction. It is only used if the jdk.incubator.vector module is in the JVM and the
+ * class is on the class path, so nothing else needs the module to compile or run. To get it, compile and run with:
+ *
+ *   javac -d out src/*.java
+ *   javac --add-modules jdk.incubator.vector -cp out -d out src-vector/*.java
+ *   java --add-modules jdk.incubator.vector -cp out Primes ...
+ *
+ * Running with -Dprimes.kernels=scalar keeps the scalar loops anyway, to compare the two.
+ */
+public class WordKernels {
+    static final WordKernels KERNELS = load();
+
+    /**
+     * @return The vector kernels if they can be loaded, the scalar ones otherwise.
+     */
+    private static WordKernels load() {
+        if ("scalar".equals(System.getProperty("primes.kernels"))
+                || !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            return new WordKernels();
+        }
+        try {
+            return (WordKernels)Class.forName("VectorWordKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new WordKernels(); // Not compiled in, or made for another version of the incubator module.
+        }
+    }
+
+    /**
+     * @return The name of the kernels, to show which ones are used.
+     */
+    String name() {
+        return "scalar";
+    }
+
+    /**
+     * Copy words from a pattern into a sieve that does not start on a word of the pattern, so every word is put
+     * together from two words of the pattern: target[to + i] = source[from + i] >>> shift | source[from + i + 1] <<
+     * (64 - shift).
+     * @param target The words to write.
+     * @param to The first word to write.
+     * @param source The pattern, with count + 1 words from from.
+     * @param from The first word of the pattern to read.
+     * @param shift How many bits into source[from] the first target word starts, from 1 to 63.
+     * @param count The number of words to write.
+     */
+    void shiftCopy(long[] target, int to, long[] source, int from, int shift, int count) {
+        for (int i = 0; i < count; i++) {
+            target[to + i] = source[from + i] >>> shift | source[from + i + 1] << (64 - shift);
+        }
+    }
+
+    /**
+     * @param words The words to scan.
+     * @param from The first word, inclusive.
+     * @param to The last word, exclusive.
+     * @return The index of the first word with an unset bit, or -1 if every bit is set.
+     */
+    int firstNotFull(long[] words, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (words[i] != -1L) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param words The words to count.
+     * @param from The first word, inclusive.
+     * @param to The last word, exclusive.
+     * @return The number of unset bits in the words.
+     */
+    long countClear(long[] words, int from, int to) {
+        long count = 0;
+        for (int i = from; i < to; i++) {
+            count += Long.bitCount(~words[i]);
+        }
+        return count;
+    }
+
+    /**
+     * @param a The first words.
+     * @param aFrom The first word of a to compare.
+     * @param b The second words.
+     * @param bFrom The first word of b to compare.
+     * @param count The number of words to compare.
+     * @return How many words in the first difference is, or -1 if they are all equal.
+     */
+    int mismatch(long[] a, int aFrom, long[] b, int bFrom, int count) {
+        return Arrays.mismatch(a, aFrom, aFrom + count, b, bFrom, bFrom + count);
+    }
+}